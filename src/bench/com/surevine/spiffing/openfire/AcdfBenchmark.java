@@ -0,0 +1,194 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+import com.surevine.spiffing.SIOException;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.openfire.labelling.SecurityLabel;
+import org.jivesoftware.openfire.labelling.SecurityLabelException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ACDF entry points Openfire calls per stanza: check(), valid() and asESS(), with labels
+ * arriving in both ESS and NATO form, plus rendering a Label back into a SecurityLabel.
+ *
+ * Run with -prof gc for allocation per operation. The *Contended variants run at 32 threads;
+ * use -t to try other counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(1)
+public class AcdfBenchmark {
+    private static final String NS_ESS = "urn:xmpp:sec-label:ess:0";
+
+    @State(Scope.Benchmark)
+    public static class Fixture {
+        BenchFixtures fixtures;
+        final List<SecurityLabel> nato = new ArrayList<>();
+        final List<SecurityLabel> ess = new ArrayList<>();
+        final List<Label> labels = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            fixtures = BenchFixtures.load();
+            for (String lablob : fixtures.labels) {
+                try (Label label = new Label(lablob)) {
+                    nato.add(natoLabel(label));
+                    try {
+                        ess.add(essLabel(label));
+                    } catch (SIOException e) {
+                        // No ESS encoding for this one.
+                    }
+                }
+            }
+            for (Catalogue.Item item : fixtures.plugin.getCatalogue().items()) {
+                labels.add(item.label);
+            }
+            if (ess.isEmpty()) {
+                ess.addAll(nato);
+            }
+            if (labels.isEmpty()) {
+                throw new IllegalStateException("Fixtures need a label catalogue");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixtures.close();
+        }
+    }
+
+    /**
+     * Per-thread position in the fixtures, so threads don't march in lockstep over the same labels.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int label;
+        int entity;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            label = (int) (Thread.currentThread().getId() * 7919);
+            entity = (int) (Thread.currentThread().getId() * 104729);
+        }
+
+        <T> T next(List<T> items) {
+            label = (label + 1) & Integer.MAX_VALUE;
+            return items.get(label % items.size());
+        }
+
+        int nextEntity(int size) {
+            entity = (entity + 1) & Integer.MAX_VALUE;
+            return entity % size;
+        }
+    }
+
+    static SecurityLabel natoLabel(Label label) throws SIOException, DocumentException {
+        Element element = DocumentHelper.parseText(label.toNATOXML()).getRootElement();
+        element.detach();
+        return new SecurityLabel(label.displayMarking(), label.fgColour(), label.bgColour(), element);
+    }
+
+    static SecurityLabel essLabel(Label label) throws SIOException {
+        Element element = DocumentHelper.createElement(QName.get("esssecuritylabel", NS_ESS));
+        element.setText(label.toESSBase64());
+        return new SecurityLabel(label.displayMarking(), label.fgColour(), label.bgColour(), element);
+    }
+
+    private static void check(Fixture f, Cursor c, Blackhole bh, boolean rewrite) {
+        int i = c.nextEntity(f.fixtures.entities.size());
+        try {
+            bh.consume(f.fixtures.plugin.check(f.fixtures.clearances.get(i), c.next(f.nato),
+                    rewrite ? f.fixtures.entities.get(i) : null));
+        } catch (SecurityLabelException e) {
+            bh.consume(e);
+        }
+    }
+
+    @Benchmark
+    public void checkNoRewrite(Fixture f, Cursor c, Blackhole bh) {
+        check(f, c, bh, false);
+    }
+
+    @Benchmark
+    public void checkRewrite(Fixture f, Cursor c, Blackhole bh) {
+        check(f, c, bh, true);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void checkRewriteContended(Fixture f, Cursor c, Blackhole bh) {
+        check(f, c, bh, true);
+    }
+
+    /**
+     * One label checked for every fixture entity at once, as for a MUC message.
+     */
+    @Benchmark
+    public Map<JID, LabelDecision> checkBatch(Fixture f, Cursor c) {
+        return f.fixtures.plugin.check(c.next(f.nato), f.fixtures.entities);
+    }
+
+    @Benchmark
+    public SecurityLabel validNato(Fixture f, Cursor c) {
+        return f.fixtures.plugin.valid(c.next(f.nato), false);
+    }
+
+    @Benchmark
+    public SecurityLabel validEss(Fixture f, Cursor c) {
+        return f.fixtures.plugin.valid(c.next(f.ess), false);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public SecurityLabel validEssContended(Fixture f, Cursor c) {
+        return f.fixtures.plugin.valid(c.next(f.ess), false);
+    }
+
+    @Benchmark
+    public String asESSFromNato(Fixture f, Cursor c) {
+        return f.fixtures.plugin.asESS(c.next(f.nato));
+    }
+
+    /**
+     * valid() with rewrite, which renders the cached Label back into a SecurityLabel.
+     */
+    @Benchmark
+    public SecurityLabel validRewrite(Fixture f, Cursor c) {
+        return f.fixtures.plugin.valid(c.next(f.nato), true);
+    }
+
+    /**
+     * Rendering a Label with no cache key, as for freshly computed equivalents.
+     */
+    @Benchmark
+    public SecurityLabel rewriteUncached(Fixture f, Cursor c) throws SIOException {
+        try (LabelCache.Guard guard = f.fixtures.plugin.enter()) {
+            return f.fixtures.plugin.rewrite(c.next(f.labels));
+        }
+    }
+}
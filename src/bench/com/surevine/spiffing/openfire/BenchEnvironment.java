@@ -0,0 +1,94 @@
+package com.surevine.spiffing.openfire;
+
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * PluginEnvironment standing in for JiveGlobals and XMPPServer outside a running server.
+ */
+class BenchEnvironment implements PluginEnvironment {
+    private final Map<String, String> properties = new ConcurrentHashMap<>();
+    private final String domain;
+    private volatile Consumer<IQ> router = null;
+
+    BenchEnvironment(String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Stand in for the IQ router: replies the handlers route are passed here.
+     */
+    void setRouter(Consumer<IQ> router) {
+        this.router = router;
+    }
+
+    void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    @Override
+    public String getProperty(String name) {
+        return properties.get(name);
+    }
+
+    @Override
+    public int getIntProperty(String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public long getLongProperty(String name, long defaultValue) {
+        String value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = properties.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    @Override
+    public Collection<String> getPropertyNames() {
+        return properties.keySet();
+    }
+
+    @Override
+    public String getDomain() {
+        return domain;
+    }
+
+    @Override
+    public boolean isLocal(JID jid) {
+        return jid != null && domain.equals(jid.getDomain());
+    }
+
+    @Override
+    public void route(IQ reply) {
+        // Benchmarks call the handlers synchronously, so usually nothing is listening.
+        Consumer<IQ> r = router;
+        if (r != null) {
+            r.accept(reply);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+import com.surevine.spiffing.SIOException;
+import org.dom4j.DocumentException;
+import org.jivesoftware.openfire.labelling.SecurityLabel;
+import org.jivesoftware.openfire.labelling.SecurityLabelException;
+import org.xmpp.packet.JID;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Benchmark fixtures, read from the directory named by -Dspiffing.bench.fixtures:
+ *
+ *   policies/*.xml        SPIF files, all loaded.
+ *   catalogue.txt         One label per line, ESS base64 or NATO XML; a few hundred is realistic.
+ *   labels.txt            Labels to check, one per line; defaults to the catalogue.
+ *   clearances.txt        "jid clearance" per line, clearances spanning several policies.
+ *   spiffing.properties   Any further plugin properties, such as rewrite policies and the default label.
+ *
+ * Users in the domain "bench.local" are local; anything else is treated as a peer.
+ *
+ * With spiffing.lattice set to "verify", loading checks every label against every clearance and fails
+ * unless each one compiled and the compiled checks agreed with the native library.
+ */
+final class BenchFixtures {
+    static final String PROP_FIXTURES = "spiffing.bench.fixtures";
+    static final String DOMAIN = "bench.local";
+
+    final BenchEnvironment env;
+    final BenchPlugin plugin;
+    final List<JID> entities = new ArrayList<>();
+    final List<String> clearances = new ArrayList<>();
+    final List<String> labels;
+
+    private BenchFixtures(File dir) throws IOException {
+        this.env = new BenchEnvironment(DOMAIN);
+        File props = new File(dir, "spiffing.properties");
+        if (props.exists()) {
+            Properties p = new Properties();
+            try (Reader r = new FileReader(props)) {
+                p.load(r);
+            }
+            for (String name : p.stringPropertyNames()) {
+                env.setProperty(name, p.getProperty(name));
+            }
+        }
+        List<String> policies = new ArrayList<>();
+        File[] spifs = new File(dir, "policies").listFiles((d, name) -> name.endsWith(".xml"));
+        if (spifs != null) {
+            for (File spif : spifs) {
+                policies.add(spif.getAbsolutePath());
+            }
+        }
+        Collections.sort(policies);
+        env.setProperty(NewPlugin.PROP_POLICY_FILES, String.join(",", policies));
+        List<String> catalogue = lines(new File(dir, "catalogue.txt"));
+        env.setProperty(NewPlugin.PROP_LABEL_CATALOGUE, String.join(",", catalogue));
+        File labelFile = new File(dir, "labels.txt");
+        this.labels = labelFile.exists() ? lines(labelFile) : catalogue;
+
+        this.plugin = new BenchPlugin(env);
+        for (String line : lines(new File(dir, "clearances.txt"))) {
+            int space = line.indexOf(' ');
+            if (space < 0) {
+                continue;
+            }
+            JID entity = new JID(line.substring(0, space));
+            String clearance = line.substring(space + 1).trim();
+            plugin.setClearance(entity, clearance);
+            entities.add(entity);
+            clearances.add(clearance);
+        }
+        if (plugin.start() == 0) {
+            throw new IllegalStateException("No policies loaded from " + dir);
+        }
+        if (entities.isEmpty() || labels.isEmpty()) {
+            throw new IllegalStateException("Fixtures need at least one clearance and one label");
+        }
+        if ("verify".equals(env.getProperty(NewPlugin.PROP_LATTICE))) {
+            verifyLattice();
+        }
+    }
+
+    private void verifyLattice() {
+        for (String lablob : labels) {
+            SecurityLabel label;
+            try (Label l = new Label(lablob)) {
+                label = AcdfBenchmark.natoLabel(l);
+            } catch (SIOException | DocumentException e) {
+                throw new IllegalStateException("Bad fixture label " + lablob, e);
+            }
+            for (String clearance : clearances) {
+                try {
+                    plugin.check(clearance, label, null);
+                } catch (SecurityLabelException e) {
+                    // Denied; only the agreement matters here.
+                }
+            }
+        }
+        if (plugin.getLatticeChecks() == 0 || plugin.getLatticeFallbacks() != 0 || plugin.getLatticeMismatches() != 0) {
+            throw new IllegalStateException("Lattice check failed: " + plugin.getLatticeChecks() + " compiled, "
+                    + plugin.getLatticeFallbacks() + " fell back, " + plugin.getLatticeMismatches() + " disagreed");
+        }
+    }
+
+    static BenchFixtures load() throws IOException {
+        String dir = System.getProperty(PROP_FIXTURES);
+        if (dir == null) {
+            throw new IllegalStateException("Set -D" + PROP_FIXTURES + " to the fixtures directory");
+        }
+        return new BenchFixtures(new File(dir));
+    }
+
+    void close() {
+        plugin.stop();
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+}
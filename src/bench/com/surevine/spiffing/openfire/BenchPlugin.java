@@ -0,0 +1,26 @@
+package com.surevine.spiffing.openfire;
+
+import org.xmpp.packet.JID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NewPlugin with clearances taken from the fixtures rather than user properties.
+ */
+class BenchPlugin extends NewPlugin {
+    private final Map<String, String> clearances = new ConcurrentHashMap<>();
+
+    BenchPlugin(BenchEnvironment env) {
+        super(env);
+    }
+
+    void setClearance(JID entity, String clearance) {
+        clearances.put(entity.toBareJID(), clearance);
+    }
+
+    @Override
+    public String getClearance(JID entity) {
+        return clearances.get(entity.toBareJID());
+    }
+}
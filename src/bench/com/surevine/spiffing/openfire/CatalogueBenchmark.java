@@ -0,0 +1,96 @@
+package com.surevine.spiffing.openfire;
+
+import org.dom4j.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XEP-0258 catalogue requests between every pair of fixture entities, answered from the
+ * computed-catalogue cache (cached*) and computed afresh (computed*).
+ *
+ * Run with -prof gc for allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(1)
+public class CatalogueBenchmark {
+    @State(Scope.Benchmark)
+    public static class Fixture {
+        BenchFixtures fixtures;
+        CatalogueHandler handler;
+        final List<IQ> requests = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            fixtures = BenchFixtures.load();
+            handler = fixtures.plugin.getCatalogueHandler(true);
+            for (JID from : fixtures.entities) {
+                for (JID to : fixtures.entities) {
+                    IQ request = new IQ(IQ.Type.get);
+                    request.setFrom(from);
+                    request.setTo(BenchFixtures.DOMAIN);
+                    Element catalog = request.setChildElement("catalog", CatalogueHandler.NS2_CATALOG);
+                    catalog.addAttribute("to", to.toString());
+                    requests.add(request);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            fixtures.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            next = (int) (Thread.currentThread().getId() * 7919);
+        }
+
+        IQ next(List<IQ> requests) {
+            next = (next + 1) & Integer.MAX_VALUE;
+            return requests.get(next % requests.size());
+        }
+    }
+
+    @Benchmark
+    public IQ cached(Fixture f, Cursor c) {
+        return f.handler.answer(c.next(f.requests));
+    }
+
+    @Benchmark
+    @Threads(32)
+    public IQ cachedContended(Fixture f, Cursor c) {
+        return f.handler.answer(c.next(f.requests));
+    }
+
+    @Benchmark
+    public IQ computed(Fixture f, Cursor c) {
+        f.handler.invalidate();
+        return f.handler.answer(c.next(f.requests));
+    }
+}
@@ -0,0 +1,362 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+import com.surevine.spiffing.SIOException;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.handler.IQHandler;
+import org.jivesoftware.openfire.labelling.SecurityLabel;
+import org.jivesoftware.openfire.labelling.SecurityLabelException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closed-loop load test: replays labelled message, catalogue and clearance stanzas through the
+ * ACDF and IQ handlers, with BenchEnvironment standing in for JiveGlobals, XMPPServer and the IQ
+ * router, and reports throughput, latency percentiles and native handle counts.
+ *
+ * Uses the fixtures described in BenchFixtures, and these system properties:
+ *
+ *   spiffing.replay.traffic    Recorded stanzas, one per line; otherwise traffic is generated.
+ *   spiffing.replay.synthetic  How many stanzas to generate (10000).
+ *   spiffing.replay.mix        Generated mix as kind:weight (message:90,catalog:8,clearance:2).
+ *   spiffing.replay.threads    Concurrent senders (16).
+ *   spiffing.replay.warmup     Seconds before measuring (5).
+ *   spiffing.replay.seconds    Seconds measured (30).
+ *   spiffing.replay.async      Submit IQs through handleIQ and wait for the routed reply (false).
+ *
+ * Messages are checked against the recipient's clearance and rewritten for it, as the server does
+ * on delivery. IQs are answered by whichever handler owns their namespace.
+ */
+public final class ReplayHarness {
+    static final String PROP_TRAFFIC = "spiffing.replay.traffic";
+    static final String PROP_SYNTHETIC = "spiffing.replay.synthetic";
+    static final String PROP_MIX = "spiffing.replay.mix";
+    static final String PROP_THREADS = "spiffing.replay.threads";
+    static final String PROP_WARMUP = "spiffing.replay.warmup";
+    static final String PROP_SECONDS = "spiffing.replay.seconds";
+    static final String PROP_ASYNC = "spiffing.replay.async";
+
+    enum Kind {
+        MESSAGE, CATALOG, CLEARANCE
+    }
+
+    private final BenchFixtures fixtures;
+    private final List<Element> traffic;
+    private final boolean async;
+    private final ConcurrentHashMap<String, CompletableFuture<IQ>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private volatile boolean measuring = false;
+    private volatile boolean running = true;
+
+    private ReplayHarness(BenchFixtures fixtures, List<Element> traffic, boolean async) {
+        this.fixtures = fixtures;
+        this.traffic = traffic;
+        this.async = async;
+        if (async) {
+            fixtures.env.setRouter(reply -> {
+                CompletableFuture<IQ> f = pending.remove(reply.getID());
+                if (f != null) {
+                    f.complete(reply);
+                }
+            });
+        }
+    }
+
+    /**
+     * Latencies of one sender for one kind of stanza, in nanoseconds.
+     */
+    private static final class Samples {
+        long[] nanos = new long[1024];
+        int size = 0;
+        long errors = 0;
+
+        void add(long value) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i != other.size; ++i) {
+                add(other.nanos[i]);
+            }
+            errors += other.errors;
+        }
+    }
+
+    private final class Sender implements Runnable {
+        private final int offset;
+        private final CountDownLatch done;
+        final Map<Kind, Samples> samples = new EnumMap<>(Kind.class);
+
+        Sender(int offset, CountDownLatch done) {
+            this.offset = offset;
+            this.done = done;
+            for (Kind kind : Kind.values()) {
+                samples.put(kind, new Samples());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                int i = offset;
+                while (running) {
+                    Element stanza = traffic.get(i++ % traffic.size());
+                    Kind kind = kind(stanza);
+                    long start = System.nanoTime();
+                    boolean ok = send(kind, stanza);
+                    long elapsed = System.nanoTime() - start;
+                    if (measuring) {
+                        Samples s = samples.get(kind);
+                        s.add(elapsed);
+                        if (!ok) {
+                            ++s.errors;
+                        }
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static Kind kind(Element stanza) {
+        if (stanza.getName().equals("message")) {
+            return Kind.MESSAGE;
+        }
+        Element child = (Element) stanza.elements().get(0);
+        return child.getNamespaceURI().equals(ClearanceHandler.NS_CLEARANCE) ? Kind.CLEARANCE : Kind.CATALOG;
+    }
+
+    /**
+     * Deliver one stanza. Returns false if it was refused or answered with an error.
+     */
+    private boolean send(Kind kind, Element stanza) {
+        if (kind == Kind.MESSAGE) {
+            JID to = new JID(stanza.attributeValue("to"));
+            String from = stanza.attributeValue("from");
+            SecurityLabel label = new SecurityLabel(stanza.element("securitylabel").createCopy());
+            try {
+                fixtures.plugin.check(fixtures.plugin.getClearance(to), label, to, from == null ? null : new JID(from));
+                return true;
+            } catch (SecurityLabelException e) {
+                return false;
+            }
+        }
+        IQ request = new IQ(stanza.createCopy());
+        request.setID("replay-" + ids.incrementAndGet());
+        Element child = request.getChildElement();
+        IQ reply;
+        if (kind == Kind.CLEARANCE) {
+            ClearanceHandler handler = fixtures.plugin.getClearanceHandler();
+            reply = async ? submit(request, handler) : handler.answer(request);
+        } else {
+            CatalogueHandler handler = fixtures.plugin.getCatalogueHandler(CatalogueHandler.NS2_CATALOG.equals(child.getNamespaceURI()));
+            reply = async ? submit(request, handler) : handler.answer(request);
+        }
+        return reply != null && reply.getError() == null;
+    }
+
+    private IQ submit(IQ request, IQHandler handler) {
+        CompletableFuture<IQ> f = new CompletableFuture<>();
+        pending.put(request.getID(), f);
+        try {
+            IQ immediate = handler.handleIQ(request);
+            if (immediate != null) {
+                pending.remove(request.getID());
+                return immediate;
+            }
+            return f.get(30, TimeUnit.SECONDS);
+        } catch (UnauthorizedException | InterruptedException | ExecutionException | TimeoutException e) {
+            pending.remove(request.getID());
+            return null;
+        }
+    }
+
+    private void run(int threads, int warmup, int seconds) throws InterruptedException {
+        long[] before = handles();
+        CountDownLatch done = new CountDownLatch(threads);
+        List<Sender> senders = new ArrayList<>();
+        for (int t = 0; t != threads; ++t) {
+            Sender sender = new Sender(t * 7919, done);
+            senders.add(sender);
+            Thread thread = new Thread(sender, "replay-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        long[] warm = handles();
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        measuring = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        done.await();
+        long[] after = handles();
+
+        System.out.printf("%d senders, %s, %ds warm-up, %.1fs measured, %d stanzas in the traffic set%n",
+                threads, async ? "async IQs" : "sync IQs", warmup, elapsed, traffic.size());
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n", "kind", "ops/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        Samples all = new Samples();
+        for (Kind kind : Kind.values()) {
+            Samples merged = new Samples();
+            for (Sender sender : senders) {
+                merged.addAll(sender.samples.get(kind));
+            }
+            if (merged.size != 0) {
+                report(kind.name().toLowerCase(), merged, elapsed);
+                all.addAll(merged);
+            }
+        }
+        report("all", all, elapsed);
+        System.out.printf("%nNative handles live    %10s %10s %10s%n", "start", "warm", "end");
+        for (Handles.Kind kind : Handles.Kind.values()) {
+            int k = kind.ordinal();
+            System.out.printf("  %-20s %10d %10d %10d%n", kind.name().toLowerCase(), before[k], warm[k], after[k]);
+        }
+    }
+
+    private static void report(String name, Samples samples, double elapsed) {
+        long[] sorted = Arrays.copyOf(samples.nanos, samples.size);
+        Arrays.sort(sorted);
+        System.out.printf("%-10s %10.0f %8d %10.3f %10.3f %10.3f %10.3f%n", name, sorted.length / elapsed, samples.errors,
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static long[] handles() {
+        long[] result = new long[Handles.Kind.values().length];
+        for (Handles.Kind kind : Handles.Kind.values()) {
+            result[kind.ordinal()] = Handles.live(kind);
+        }
+        return result;
+    }
+
+    /**
+     * Recorded stanzas, one XML element per line.
+     */
+    private static List<Element> recorded(File file) throws IOException, DocumentException {
+        List<Element> result = new ArrayList<>();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                result.add(DocumentHelper.parseText(line).getRootElement());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Random traffic between the fixture entities, using the fixture labels.
+     */
+    private static List<Element> synthetic(BenchFixtures fixtures, int count, String mix) throws SIOException, DocumentException {
+        List<Element> labels = new ArrayList<>();
+        for (String lablob : fixtures.labels) {
+            try (Label label = new Label(lablob)) {
+                labels.add(AcdfBenchmark.natoLabel(label).getElement());
+            }
+        }
+        Map<Kind, Integer> weights = new EnumMap<>(Kind.class);
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int weight = Integer.parseInt(kv[1].trim());
+            weights.put(Kind.valueOf(kv[0].trim().toUpperCase()), weight);
+            total += weight;
+        }
+        Random random = new Random(4774);
+        List<Element> result = new ArrayList<>(count);
+        for (int i = 0; i != count; ++i) {
+            JID from = fixtures.entities.get(random.nextInt(fixtures.entities.size()));
+            JID to = fixtures.entities.get(random.nextInt(fixtures.entities.size()));
+            int pick = random.nextInt(total);
+            Kind kind = Kind.MESSAGE;
+            for (Map.Entry<Kind, Integer> e : weights.entrySet()) {
+                if (pick < e.getValue()) {
+                    kind = e.getKey();
+                    break;
+                }
+                pick -= e.getValue();
+            }
+            Element stanza;
+            if (kind == Kind.MESSAGE) {
+                stanza = DocumentHelper.createElement("message");
+                stanza.addAttribute("type", "chat");
+                stanza.addElement("body").setText("Replay " + i);
+                stanza.add(labels.get(random.nextInt(labels.size())).createCopy());
+            } else {
+                stanza = DocumentHelper.createElement("iq");
+                stanza.addAttribute("type", "get");
+                Element child;
+                if (kind == Kind.CATALOG) {
+                    child = stanza.addElement("catalog", random.nextBoolean() ? CatalogueHandler.NS2_CATALOG : CatalogueHandler.NS0_CATALOG);
+                    child.addAttribute("to", to.toString());
+                } else {
+                    child = stanza.addElement("clearance", ClearanceHandler.NS_CLEARANCE);
+                    if (random.nextBoolean()) {
+                        child.addAttribute("for", to.toString());
+                    }
+                }
+            }
+            stanza.addAttribute("from", from.toString());
+            stanza.addAttribute("to", kind == Kind.MESSAGE ? to.toString() : BenchFixtures.DOMAIN);
+            result.add(stanza);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchFixtures fixtures = BenchFixtures.load();
+        try {
+            String traffic = System.getProperty(PROP_TRAFFIC);
+            List<Element> stanzas = traffic != null ? recorded(new File(traffic))
+                    : synthetic(fixtures, Integer.getInteger(PROP_SYNTHETIC, 10000),
+                    System.getProperty(PROP_MIX, "message:90,catalog:8,clearance:2"));
+            if (stanzas.isEmpty()) {
+                throw new IllegalStateException("No traffic to replay");
+            }
+            ReplayHarness harness = new ReplayHarness(fixtures, stanzas, Boolean.getBoolean(PROP_ASYNC));
+            harness.run(Integer.getInteger(PROP_THREADS, 16), Integer.getInteger(PROP_WARMUP, 5),
+                    Integer.getInteger(PROP_SECONDS, 30));
+        } finally {
+            fixtures.close();
+        }
+        long leaked = 0;
+        for (Handles.Kind kind : Handles.Kind.values()) {
+            leaked += Handles.live(kind);
+        }
+        System.out.printf("Native handles live after stop: %d%n", leaked);
+    }
+}
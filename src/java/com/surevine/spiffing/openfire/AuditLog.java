@@ -0,0 +1,390 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit trail of access decisions, written as JSON lines to rotated, append-only files.
+ *
+ * Recording a decision claims a preallocated slot in a ring buffer and copies references into it;
+ * nothing is formatted or allocated on the calling thread. A single writer thread drains the
+ * buffer, formats the records and writes them. If the buffer is full the record is dropped and
+ * counted, and the writer notes how many were lost, so a stalled disk never delays delivery. Records
+ * that arrive while no file can be opened are counted as dropped in the same way. While the buffer
+ * stays empty the writer parks for progressively longer, up to MAX_PARK, so an idle log costs next
+ * to nothing.
+ *
+ * Labels and clearances are written as short digest ids. The first use of an id in each file is
+ * preceded by a record giving its full text, so every file can be read on its own.
+ */
+class AuditLog implements Runnable {
+    private static final Logger Log = LoggerFactory.getLogger(AuditLog.class);
+    static String PROP_AUDIT = "spiffing.audit.enabled";
+    static String PROP_AUDIT_DIR = "spiffing.audit.dir";
+    static String PROP_AUDIT_BUFFER = "spiffing.audit.buffer";
+    static String PROP_AUDIT_ROTATE_SIZE = "spiffing.audit.rotate.size";
+    private static final long RETRY_INTERVAL = 10000;
+    private static final long MIN_PARK = 50_000L;
+    private static final long MAX_PARK = 20_000_000L;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ISO_INSTANT;
+    private static final DateTimeFormatter FILE_STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+    private final Path dir;
+    private final long rotateSize;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Writer thread state.
+    private BufferedWriter out = null;
+    private long written = 0;
+    private int sequence = 0;
+    private long retryAt = 0;
+    private boolean discarding = false;
+    private final Set<String> defined = new HashSet<>();
+    private final StringBuilder line = new StringBuilder(512);
+    private final MessageDigest sha256;
+    private final LinkedHashMap<String, String> ids = new LinkedHashMap<String, String>(16, (float) 0.75, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    /**
+     * One decision. Fields are written by the recording thread before publishing the sequence, and
+     * read by the writer after seeing it.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        long time;
+        String op;
+        JID sender;
+        JID subject;
+        JID rewrite;
+        String clearance;
+        String label;
+        String policy;
+        boolean allowed;
+        String result;
+        String reason;
+    }
+
+    AuditLog(PluginEnvironment env) {
+        int capacity = Integer.highestOneBit(Math.max(2, env.getIntProperty(PROP_AUDIT_BUFFER, 8192)) - 1) << 1;
+        this.slots = new Slot[capacity];
+        for (int i = 0; i != capacity; ++i) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.mask = capacity - 1;
+        String dir = env.getProperty(PROP_AUDIT_DIR);
+        this.dir = Paths.get(dir == null ? "logs" : dir);
+        this.rotateSize = env.getLongProperty(PROP_AUDIT_ROTATE_SIZE, 64L * 1024 * 1024);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.thread = new Thread(this, "spiffing-audit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Record a decision about delivering the label (a label cache key) from the sender to the subject.
+     * Either may be null if the caller doesn't know it. The result is the key of the label delivered,
+     * if rewritten, and the reason why access was denied otherwise.
+     */
+    void record(String op, JID sender, JID subject, JID rewrite, String clearance, String label, String policy,
+                boolean allowed, String result, String reason) {
+        Slot slot;
+        long t;
+        while (true) {
+            t = tail.get();
+            slot = slots[(int) t & mask];
+            long d = slot.sequence - t;
+            if (d == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (d < 0) {
+                // Full: the writer hasn't yet freed this slot from the previous lap.
+                dropped.increment();
+                return;
+            }
+            // Otherwise another thread claimed this slot since we read the tail; try the next.
+        }
+        slot.time = System.currentTimeMillis();
+        slot.op = op;
+        slot.sender = sender;
+        slot.subject = subject;
+        slot.rewrite = rewrite;
+        slot.clearance = clearance;
+        slot.label = label;
+        slot.policy = policy;
+        slot.allowed = allowed;
+        slot.result = result;
+        slot.reason = reason;
+        slot.sequence = t + 1;
+        recorded.increment();
+    }
+
+    long recorded() {
+        return recorded.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stop the writer once it has written everything already recorded.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        long park = MIN_PARK;
+        while (true) {
+            boolean stopping = !running;
+            int drained = drain();
+            if (drained == 0) {
+                flush();
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(park);
+                park = Math.min(park * 2, MAX_PARK);
+            } else {
+                park = MIN_PARK;
+            }
+        }
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.warn("Closing audit log: ", e);
+            }
+        }
+    }
+
+    private int drain() {
+        int n = 0;
+        while (true) {
+            Slot slot = slots[(int) head & mask];
+            if (slot.sequence != head + 1) {
+                break;
+            }
+            write(slot);
+            slot.op = null;
+            slot.sender = null;
+            slot.subject = null;
+            slot.rewrite = null;
+            slot.clearance = null;
+            slot.label = null;
+            slot.policy = null;
+            slot.result = null;
+            slot.reason = null;
+            slot.sequence = head + slots.length;
+            ++head;
+            ++n;
+        }
+        long lost = dropped.sum();
+        if (lost != droppedReported) {
+            rotateIfNeeded();
+            line.setLength(0);
+            line.append("{\"type\":\"dropped\",\"time\":\"");
+            TIMESTAMP.formatTo(Instant.now(), line);
+            line.append("\",\"count\":").append(lost - droppedReported).append('}');
+            if (emit()) {
+                droppedReported = lost;
+            }
+        }
+        return n;
+    }
+
+    private void write(Slot slot) {
+        // Rotate first, so the definitions land in the same file as the decision.
+        rotateIfNeeded();
+        if (out == null) {
+            discard();
+            return;
+        }
+        String clearance = define("clearance", slot.clearance);
+        String label = define("label", slot.label);
+        String result = define("label", slot.result);
+        line.setLength(0);
+        line.append("{\"type\":\"decision\",\"time\":\"");
+        TIMESTAMP.formatTo(Instant.ofEpochMilli(slot.time), line);
+        line.append('"');
+        field("op", slot.op);
+        field("sender", slot.sender == null ? null : slot.sender.toString());
+        field("subject", slot.subject == null ? null : slot.subject.toString());
+        field("rewrite", slot.rewrite == null ? null : slot.rewrite.toString());
+        field("clearance", clearance);
+        field("label", label);
+        field("policy", slot.policy);
+        field("outcome", slot.allowed ? "allow" : "deny");
+        field("result", result);
+        field("reason", slot.reason);
+        line.append('}');
+        if (!emit()) {
+            discard();
+        }
+    }
+
+    private void discard() {
+        dropped.increment();
+        if (!discarding) {
+            Log.warn("Audit log unavailable; dropping audit records until it can be reopened");
+            discarding = true;
+        }
+    }
+
+    /**
+     * The id for a label or clearance, writing its definition first if this file hasn't had it yet.
+     */
+    private String define(String type, String text) {
+        if (text == null) {
+            return null;
+        }
+        String id = ids.get(text);
+        if (id == null) {
+            byte[] digest = sha256.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i != 8; ++i) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            id = sb.toString();
+            ids.put(text, id);
+        }
+        if (defined.add(type + id)) {
+            line.setLength(0);
+            line.append("{\"type\":\"").append(type).append("\",\"id\":\"").append(id).append('"');
+            field("text", text);
+            line.append('}');
+            emit();
+        }
+        return id;
+    }
+
+    private void field(String name, String value) {
+        if (value == null) {
+            return;
+        }
+        line.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i != value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Write the line to the current file, returning false if there is none or the write failed.
+     */
+    private boolean emit() {
+        if (out == null) {
+            return false;
+        }
+        try {
+            line.append('\n');
+            out.append(line);
+            written += line.length();
+            return true;
+        } catch (IOException e) {
+            Log.warn("Writing audit log: ", e);
+            closeFile();
+            return false;
+        }
+    }
+
+    private void rotateIfNeeded() {
+        if (out != null ? written < rotateSize : System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        closeFile();
+        try {
+            Files.createDirectories(dir);
+            Path file = dir.resolve("spiffing-audit-" + FILE_STAMP.format(Instant.now()) + "-" + (sequence++) + ".log");
+            // CREATE_NEW: never reopen, and so never overwrite, an existing file.
+            out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+            written = 0;
+            defined.clear();
+            discarding = false;
+            Log.info("Writing audit log to " + file);
+        } catch (IOException e) {
+            Log.warn("Couldn't open audit log in " + dir + ": ", e);
+            out = null;
+            defined.clear();
+            retryAt = System.currentTimeMillis() + RETRY_INTERVAL;
+        }
+    }
+
+    private void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                Log.warn("Flushing audit log: ", e);
+                closeFile();
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.warn("Closing audit log: ", e);
+            }
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The configured label catalogue, in configuration order, indexed by label key and display marking.
+ *
+ * Catalogues are immutable; a change to spiffing.label.catalogue builds a new one. The Labels
+ * themselves are pinned in the LabelCache, which owns them.
+ */
+public final class Catalogue {
+    private final List<Item> items;
+    private final Map<String, Item> byKey;
+    private final Map<String, List<Item>> allByDisplayMarking;
+
+    public static final class Item {
+        /** Position in the configured catalogue. */
+        public final int index;
+        /** The label cache key, as configured. */
+        public final String key;
+        public final Label label;
+        public final String policy_id;
+        public final String displayMarking;
+
+        Item(int index, String key, Label label, String policy_id, String displayMarking) {
+            this.index = index;
+            this.key = key;
+            this.label = label;
+            this.policy_id = policy_id;
+            this.displayMarking = displayMarking;
+        }
+    }
+
+    static final Catalogue EMPTY = new Catalogue(Collections.<Item>emptyList());
+
+    Catalogue(List<Item> items) {
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        Map<String, Item> keys = new LinkedHashMap<>();
+        Map<String, List<Item>> allMarkings = new HashMap<>();
+        for (Item item : this.items) {
+            allMarkings.computeIfAbsent(item.displayMarking, k -> new ArrayList<>()).add(item);
+            keys.put(item.key, item);
+        }
+        for (Map.Entry<String, List<Item>> e : allMarkings.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        this.byKey = keys;
+        this.allByDisplayMarking = allMarkings;
+    }
+
+    public List<Item> items() {
+        return items;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * The entries before this one with the same display marking, in catalogue order.
+     */
+    public List<Item> earlierWithDisplayMarking(Item item) {
+        List<Item> same = allByDisplayMarking.get(item.displayMarking);
+        if (same == null) {
+            return Collections.<Item>emptyList();
+        }
+        int pos = same.indexOf(item);
+        return pos <= 0 ? Collections.<Item>emptyList() : same.subList(0, pos);
+    }
+
+    /**
+     * The entry configured with the given label key, or null.
+     */
+    public Item forKey(String key) {
+        return byKey.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return byKey.containsKey(key);
+    }
+}
@@ -1,20 +1,29 @@
 package com.surevine.spiffing.openfire;
 
-import com.surevine.spiffing.Clearance;
 import com.surevine.spiffing.Label;
 import com.surevine.spiffing.SIOException;
-import com.surevine.spiffing.Site;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.dom4j.QName;
 import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
+import org.xmpp.packet.PacketError;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
 
 public class CatalogueHandler extends IQHandler {
     private final IQHandlerInfo info;
@@ -22,93 +31,439 @@ public class CatalogueHandler extends IQHandler {
     private boolean ns2;
     public final static String NS0_CATALOG = "urn:xmpp:sec-label:catalog:0";
     public final static String NS2_CATALOG = "urn:xmpp:sec-label:catalog:2";
+    public final static String NS_RSM = "http://jabber.org/protocol/rsm";
+    static String PROP_CATALOGUE_CACHE_SIZE = "spiffing.cache.catalogue.size";
+    static String PROP_PARALLEL_THRESHOLD = "spiffing.catalogue.parallel.threshold";
+
+    // Computed catalogues, keyed by source clearance, target clearance and source rewrite policies.
+    private final LinkedHashMap<String, Computed> responses;
+    // Bumped by invalidate(), so catalogues computed before it aren't cached after it. Guarded by responses.
+    private long generation = 0;
+    // Catalogues being computed, by the same key, so concurrent identical requests share the work.
+    private final ConcurrentHashMap<String, CompletableFuture<Computed>> inflight = new ConcurrentHashMap<>();
+    // Catalogues with fewer items than this are evaluated on the request's own thread.
+    private final int parallelThreshold;
 
     public CatalogueHandler(NewPlugin plugin, boolean ns2) {
         super("XEP-0258 Catalogue Handler");
         this.plugin = plugin;
         this.info = new IQHandlerInfo("catalog", ns2 ? NS2_CATALOG : NS0_CATALOG);
         this.ns2 = ns2;
+        final int maxSize = plugin.getEnvironment().getIntProperty(PROP_CATALOGUE_CACHE_SIZE, 1000);
+        this.parallelThreshold = plugin.getEnvironment().getIntProperty(PROP_PARALLEL_THRESHOLD, 32);
+        this.responses = new LinkedHashMap<String, Computed>(16, (float) 0.75, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Computed> eldest) {
+                return size() > maxSize;
+            }
+        };
     }
 
-    void addCatItem(Element catalog, Label label) throws SIOException {
-        if (ns2) {
-            Element item = catalog.addElement("item");
-            item.addAttribute("selector", label.displayMarking());
+    /**
+     * Drop all computed catalogues, for when the catalogue or policies change.
+     */
+    void invalidate() {
+        synchronized (responses) {
+            responses.clear();
+            ++generation;
+        }
+    }
 
-            item.add(this.plugin.rewrite(label).getElement());
-        } else {
-            catalog.add(this.plugin.rewrite(label).getElement());
+    /**
+     * The catalogue entry element for a label, in this handler's namespace.
+     */
+    Element itemElement(String key, Label label) throws SIOException {
+        RenderedLabel rendered = this.plugin.getRendered(key, label);
+        if (ns2) {
+            Element item = DocumentHelper.createElement(QName.get("item", NS2_CATALOG));
+            item.addAttribute("selector", rendered.displayMarking());
+            item.add(rendered.toSecurityLabel().getElement());
+            return item;
         }
+        return rendered.toSecurityLabel().getElement();
     }
 
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
+        return this.plugin.getIQExecutor().submit(packet, this::answer);
+    }
+
+    /**
+     * Compute the reply synchronously.
+     */
+    IQ answer(IQ packet) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            IQ reply = handleCatalogueIQ(packet);
+            failed = false;
+            return reply;
+        } finally {
+            this.plugin.metrics.catalogue.record(start, failed);
+        }
+    }
+
+    private IQ handleCatalogueIQ(IQ packet) {
         IQ reply = IQ.createResultIQ(packet);
-        Set<String> included = new HashSet<>();
-        Element catalog = reply.setChildElement("catalog", ns2 ? NS2_CATALOG : NS0_CATALOG);
         Element req = packet.getChildElement();
-        LinkedHashMap<String,Clearance> source_clearance = this.plugin.getSpiffingClearance(packet.getFrom());
-        LinkedHashMap<String,Clearance> target_clearance = this.plugin.getSpiffingClearance(new JID(req.attributeValue("to")));
-        // Add some attributes.
-        for (Label label : this.plugin.getCatalogue()) {
-            try {
-                String dm = label.displayMarking();
-                if (included.contains(dm)) {
-                    continue;
+        Element set = req.element(QName.get("set", NS_RSM));
+        try (LabelCache.Guard guard = this.plugin.enter();
+             ClearanceSet source_clearance = this.plugin.getSpiffingClearance(packet.getFrom());
+             ClearanceSet target_clearance = this.plugin.getSpiffingClearance(new JID(req.attributeValue("to")))) {
+            String key = source_clearance.key() + '\n' + target_clearance.key() + '\n'
+                    + String.join(",", new TreeSet<>(this.plugin.getRewritePolicies(packet.getFrom(), source_clearance)));
+            Computed computed;
+            long gen;
+            synchronized (responses) {
+                computed = responses.get(key);
+                gen = generation;
+            }
+            if (set != null) {
+                Element catalog = reply.setChildElement("catalog", ns2 ? NS2_CATALOG : NS0_CATALOG);
+                PacketError.Condition error = page(catalog, set, computed, packet.getFrom(), source_clearance, target_clearance);
+                if (error != null) {
+                    reply.setChildElement(req.createCopy());
+                    reply.setError(error);
                 }
-                boolean needs_adding = true;
-                // There is a source and target jid. We want to present the source user with a list of labels
-                // which they understand, but ideally that the target also understands.
-                // So if the catalog entry is UK, and the user has UK/NATO, and the target is NATO only, the
-                // label should be presented to the source user as NATO.
-                // Therefore, iterate through all source user clearances to find the first match with the target,
-                // and translate. If this fails, just find any source clearance.
-                String cat_policy = label.policy().policy_id();
-                // First look for simple match:
-                if (source_clearance.containsKey(cat_policy) && target_clearance.containsKey(cat_policy)) {
-                    if (source_clearance.get(cat_policy).dominates(label) && target_clearance.get(cat_policy).dominates(label)) {
-                        addCatItem(catalog, label);
-                        needs_adding = false;
-                        break;
-                    } else {
-                        // Failed ACDF, give up on this label.
-                        needs_adding = false;
-                        break;
-                    }
+                return reply;
+            }
+            if (computed == null) {
+                CompletableFuture<Computed> computing = new CompletableFuture<>();
+                String flight = gen + "\n" + key;
+                CompletableFuture<Computed> leader = inflight.putIfAbsent(flight, computing);
+                if (leader != null) {
+                    // An identical request is already being answered; share its result.
+                    computed = leader.join();
                 } else {
-                    // Now iterate through available source policies and see if we can find a policy match.
-                    for (String source_policy : source_clearance.keySet()) {
-                        if (target_clearance.containsKey(source_policy)) {
-                            try (Label equiv = label.encrypt(Site.site().spif(source_policy))) {
-                                if (source_clearance.get(source_policy).dominates(equiv) && target_clearance.get(source_policy).dominates(equiv)) {
-                                    addCatItem(catalog, equiv);
-                                    needs_adding = false;
-                                    break;
-                                } else {
-                                    // Failed ACDF, give up on this label.
-                                    needs_adding = false;
-                                    break;
-                                }
-                            } catch (Exception e) {
-                                continue;
+                    try {
+                        computed = compute(packet.getFrom(), source_clearance, target_clearance);
+                        synchronized (responses) {
+                            if (generation == gen) {
+                                responses.put(key, computed);
                             }
                         }
+                        computing.complete(computed);
+                    } catch (RuntimeException e) {
+                        computing.completeExceptionally(e);
+                        throw e;
+                    } finally {
+                        inflight.remove(flight, computing);
                     }
                 }
-                if (needs_adding) {
-                    // Still not added; try performing basic clearance checks instead.
-                    try (Label equiv = this.plugin.check(source_clearance, label, packet.getFrom())) {
-                        this.plugin.check(target_clearance, equiv == null ? label : equiv, null);
-                        addCatItem(catalog, equiv == null ? label : equiv);
-                    } catch (Exception e) {
+            }
+            reply.setChildElement(computed.catalog.createCopy());
+        }
+        return reply;
+    }
+
+    /**
+     * A fully computed catalogue, with the catalogue index each of its items came from.
+     */
+    private static final class Computed {
+        final Element catalog;
+        final int[] indices;
+
+        Computed(Element catalog, int[] indices) {
+            this.catalog = catalog;
+            this.indices = indices;
+        }
+    }
+
+    /**
+     * Evaluate every catalogue item, in parallel if the catalogue is large, and merge the results in
+     * catalogue order. Only the first offered entry with each display marking is kept.
+     */
+    private Computed compute(JID from, ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        Catalogue catalogue = this.plugin.getCatalogue();
+        List<Catalogue.Item> items = catalogue.items();
+        Element[] elements = new Element[items.size()];
+        if (items.size() < Math.max(parallelThreshold, 2)) {
+            for (int i = 0; i != items.size(); ++i) {
+                elements[i] = evaluate(items.get(i), from, source_clearance, target_clearance);
+            }
+        } else {
+            // The caller holds both clearance sets open until this returns.
+            this.plugin.getIQExecutor().forkJoinPool().invoke(
+                    new Evaluation(items, 0, items.size(), elements, from, source_clearance, target_clearance));
+        }
+        Element catalog = DocumentHelper.createElement(QName.get("catalog", ns2 ? NS2_CATALOG : NS0_CATALOG));
+        Set<String> markings = new HashSet<>();
+        int[] indices = new int[items.size()];
+        int n = 0;
+        for (int i = 0; i != items.size(); ++i) {
+            Catalogue.Item item = items.get(i);
+            if (elements[i] != null && markings.add(item.displayMarking)) {
+                catalog.add(elements[i]);
+                indices[n++] = item.index;
+            }
+        }
+        return new Computed(catalog, Arrays.copyOf(indices, n));
+    }
+
+    /**
+     * Evaluates a range of catalogue items, splitting down to one task per item.
+     */
+    private final class Evaluation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Catalogue.Item> items;
+        private final int from_index;
+        private final int to_index;
+        private final Element[] elements;
+        private final JID from;
+        private final ClearanceSet source_clearance;
+        private final ClearanceSet target_clearance;
+
+        Evaluation(List<Catalogue.Item> items, int from_index, int to_index, Element[] elements, JID from,
+                   ClearanceSet source_clearance, ClearanceSet target_clearance) {
+            this.items = items;
+            this.from_index = from_index;
+            this.to_index = to_index;
+            this.elements = elements;
+            this.from = from;
+            this.source_clearance = source_clearance;
+            this.target_clearance = target_clearance;
+        }
+
+        @Override
+        protected void compute() {
+            if (to_index - from_index == 1) {
+                // Each worker thread needs its own guard on the cached labels it touches.
+                try (LabelCache.Guard guard = plugin.enter()) {
+                    elements[from_index] = evaluate(items.get(from_index), from, source_clearance, target_clearance);
+                }
+                return;
+            }
+            int mid = (from_index + to_index) >>> 1;
+            invokeAll(new Evaluation(items, from_index, mid, elements, from, source_clearance, target_clearance),
+                    new Evaluation(items, mid, to_index, elements, from, source_clearance, target_clearance));
+        }
+    }
+
+    /**
+     * The entry element for a catalogue item, or null if it isn't offered or an earlier entry with the
+     * same display marking already is.
+     */
+    private Element offered(Catalogue catalogue, Catalogue.Item item, JID from,
+                            ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        Element element = evaluate(item, from, source_clearance, target_clearance);
+        if (element == null) {
+            return null;
+        }
+        for (Catalogue.Item earlier : catalogue.earlierWithDisplayMarking(item)) {
+            if (evaluate(earlier, from, source_clearance, target_clearance) != null) {
+                return null;
+            }
+        }
+        return element;
+    }
+
+    /**
+     * The entry element for a catalogue item as offered from source to target, or null if it can't be offered.
+     */
+    private Element evaluate(Catalogue.Item item, JID from, ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        Label label;
+        if (source_clearance.containsKey(item.policy_id) && target_clearance.containsKey(item.policy_id)) {
+            // A simple match: entries in a policy both parties hold need only a dominance check.
+            try {
+                if (!this.plugin.dominates(source_clearance, item.policy_id, item.key, item.label)
+                        || !this.plugin.dominates(target_clearance, item.policy_id, item.key, item.label)) {
+                    return null;
+                }
+            } catch (SIOException e) {
+                // Failed ACDF, give up on this label.
+                return null;
+            }
+            label = item.label;
+        } else {
+            label = translate(item, from, source_clearance, target_clearance);
+            if (label == null) {
+                return null;
+            }
+        }
+        try {
+            // Translated labels are cached under their own keys, so their rendering is too.
+            String key = label == item.label ? item.key : this.plugin.getEquivalentKey(item.key, label.policy().policy_id());
+            return itemElement(key, label);
+        } catch (SIOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fill one XEP-0059 page of the catalogue, in catalogue order. Only as many items are evaluated as
+     * the page needs, unless the whole catalogue is already computed. Cursors name a catalogue position
+     * and the entry there, so they stay valid until the catalogue itself changes.
+     * Returns an error condition, or null on success.
+     */
+    private PacketError.Condition page(Element catalog, Element set, Computed computed, JID from,
+                                       ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        Catalogue catalogue = this.plugin.getCatalogue();
+        int max = Integer.MAX_VALUE;
+        String maxText = set.elementTextTrim("max");
+        if (maxText != null) {
+            try {
+                max = Integer.parseInt(maxText);
+            } catch (NumberFormatException e) {
+                return PacketError.Condition.bad_request;
+            }
+            if (max < 0) {
+                return PacketError.Condition.bad_request;
+            }
+        }
+        Element before = set.element("before");
+        String after = set.elementTextTrim("after");
+        String indexText = set.elementTextTrim("index");
+        int skip = 0;
+        if (indexText != null) {
+            try {
+                skip = Integer.parseInt(indexText);
+            } catch (NumberFormatException e) {
+                return PacketError.Condition.bad_request;
+            }
+            if (skip < 0) {
+                return PacketError.Condition.bad_request;
+            }
+        }
+        List<Element> elements = new ArrayList<>();
+        List<Catalogue.Item> items = new ArrayList<>();
+        int firstIndex = -1;
+        if (before != null) {
+            // Walk backwards from the cursor, or from the end if it's empty.
+            int end = catalogue.size();
+            if (!before.getTextTrim().isEmpty()) {
+                end = resolve(catalogue, before.getTextTrim());
+                if (end < 0) {
+                    return PacketError.Condition.item_not_found;
+                }
+            }
+            for (int i = end - 1; i >= 0 && elements.size() < max; --i) {
+                Catalogue.Item item = catalogue.items().get(i);
+                Element element = lookup(catalogue, computed, item, from, source_clearance, target_clearance);
+                if (element != null) {
+                    elements.add(0, element);
+                    items.add(0, item);
+                }
+            }
+            if (computed != null && !items.isEmpty()) {
+                firstIndex = position(computed, items.get(0).index);
+            }
+        } else {
+            int start = 0;
+            if (after != null) {
+                start = resolve(catalogue, after);
+                if (start < 0) {
+                    return PacketError.Condition.item_not_found;
+                }
+                ++start;
+            }
+            int seen = 0;
+            for (int i = start; i < catalogue.size() && elements.size() < max; ++i) {
+                Catalogue.Item item = catalogue.items().get(i);
+                Element element = lookup(catalogue, computed, item, from, source_clearance, target_clearance);
+                if (element != null && seen++ >= skip) {
+                    elements.add(element);
+                    items.add(item);
+                }
+            }
+            if (!items.isEmpty()) {
+                if (computed != null) {
+                    firstIndex = position(computed, items.get(0).index);
+                } else if (after == null) {
+                    firstIndex = skip;
+                }
+            }
+        }
+        for (Element element : elements) {
+            catalog.add(element);
+        }
+        Element result = catalog.addElement(QName.get("set", NS_RSM));
+        if (!items.isEmpty()) {
+            Element first = result.addElement("first");
+            first.setText(cursor(items.get(0)));
+            if (firstIndex >= 0) {
+                first.addAttribute("index", Integer.toString(firstIndex));
+            }
+            result.addElement("last").setText(cursor(items.get(items.size() - 1)));
+        }
+        if (computed != null) {
+            result.addElement("count").setText(Integer.toString(computed.indices.length));
+        }
+        return null;
+    }
+
+    /**
+     * A copy of the item's entry element, from the computed catalogue if there is one.
+     */
+    private Element lookup(Catalogue catalogue, Computed computed, Catalogue.Item item, JID from,
+                           ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        if (computed == null) {
+            return offered(catalogue, item, from, source_clearance, target_clearance);
+        }
+        int pos = position(computed, item.index);
+        return pos < 0 ? null : ((Element) computed.catalog.elements().get(pos)).createCopy();
+    }
+
+    private static int position(Computed computed, int index) {
+        int pos = Arrays.binarySearch(computed.indices, index);
+        return pos < 0 ? -1 : pos;
+    }
+
+    private static String cursor(Catalogue.Item item) {
+        return item.index + "-" + Integer.toHexString(item.key.hashCode());
+    }
+
+    /**
+     * The catalogue index a cursor names, or -1 if it no longer names the same entry.
+     */
+    private static int resolve(Catalogue catalogue, String cursor) {
+        int dash = cursor.indexOf('-');
+        if (dash <= 0) {
+            return -1;
+        }
+        try {
+            int index = Integer.parseInt(cursor.substring(0, dash));
+            if (index < 0 || index >= catalogue.size()) {
+                return -1;
+            }
+            Catalogue.Item item = catalogue.items().get(index);
+            return cursor(item).equals(cursor) ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Label translate(Catalogue.Item item, JID from, ClearanceSet source_clearance, ClearanceSet target_clearance) {
+        // There is a source and target jid. We want to present the source user with a list of labels
+        // which they understand, but ideally that the target also understands.
+        // So if the catalog entry is UK, and the user has UK/NATO, and the target is NATO only, the
+        // label should be presented to the source user as NATO.
+        // Therefore, iterate through all source user clearances to find the first match with the target,
+        // and translate. If this fails, just find any source clearance.
+        for (String source_policy : source_clearance.policies()) {
+            if (target_clearance.containsKey(source_policy)) {
+                try {
+                    Label equiv = this.plugin.getEquivalent(item.key, item.label, source_policy);
+                    if (equiv == null) {
                         continue;
                     }
+                    if (this.plugin.dominates(source_clearance.get(source_policy), equiv) && this.plugin.dominates(target_clearance.get(source_policy), equiv)) {
+                        return equiv;
+                    }
+                    // Failed ACDF, give up on this label.
+                    return null;
+                } catch (Exception e) {
+                    continue;
                 }
-            } catch (SIOException e) {
-                // Nothing
             }
         }
-        return reply;
+        // Still not added; try performing basic clearance checks instead.
+        try {
+            // Labels returned by check are owned by the label cache.
+            Label equiv = this.plugin.check(source_clearance, item.key, item.label, from);
+            this.plugin.check(target_clearance, equiv == null ? item.label : equiv, null);
+            return equiv == null ? item.label : equiv;
+        } catch (Exception e) {
+            return null;
+        }
     }
 
     @Override
@@ -0,0 +1,143 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Clearance;
+import com.surevine.spiffing.SIOException;
+import org.jivesoftware.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of parsed ClearanceSets, keyed by clearance string, with a bounded index from
+ * bare JID to clearance string.
+ *
+ * The cache holds one reference to each set; evicting or invalidating a set drops that
+ * reference, so sets still in use by other threads are freed only when they are closed.
+ */
+class ClearanceCache {
+    private static final Logger Log = LoggerFactory.getLogger(ClearanceCache.class);
+    private final NewPlugin plugin;
+    private final LinkedHashMap<String, ClearanceSet> sets;
+    private final LinkedHashMap<String, String> jids;
+    // Bumped by every invalidation, so a clearance looked up before one isn't indexed after it. Guarded by jids.
+    private long generation = 0;
+
+    ClearanceCache(NewPlugin plugin, final int maxSize) {
+        this.plugin = plugin;
+        this.sets = new LinkedHashMap<String, ClearanceSet>(16, (float) 0.75, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ClearanceSet> eldest) {
+                if (size() > maxSize) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.jids = new LinkedHashMap<String, String>(16, (float) 0.75, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the retained ClearanceSet for the given clearance string. Caller must close() it.
+     */
+    ClearanceSet acquire(String clearanceString) {
+        String key = clearanceString == null ? "" : clearanceString;
+        synchronized (sets) {
+            ClearanceSet set = sets.get(key);
+            if (set != null) {
+                return set.retain();
+            }
+        }
+        ClearanceSet parsed = parse(key);
+        synchronized (sets) {
+            ClearanceSet set = sets.get(key);
+            if (set != null) {
+                // Lost the race; use the winner's.
+                parsed.close();
+                return set.retain();
+            }
+            sets.put(key, parsed);
+            return parsed.retain();
+        }
+    }
+
+    /**
+     * Returns the retained ClearanceSet for the given entity. Caller must close() it.
+     */
+    ClearanceSet acquire(JID entity) {
+        String bare = entity.toBareJID();
+        String key;
+        long gen;
+        synchronized (jids) {
+            key = jids.get(bare);
+            gen = generation;
+        }
+        if (key == null) {
+            key = plugin.getClearance(entity);
+            if (key == null) {
+                key = "";
+            }
+            synchronized (jids) {
+                if (generation == gen) {
+                    jids.put(bare, key);
+                }
+            }
+        }
+        return acquire(key);
+    }
+
+    void invalidate(JID entity) {
+        synchronized (jids) {
+            jids.remove(entity.toBareJID());
+            ++generation;
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (jids) {
+            jids.clear();
+            ++generation;
+        }
+        List<ClearanceSet> old;
+        synchronized (sets) {
+            old = new ArrayList<>(sets.values());
+            sets.clear();
+        }
+        for (ClearanceSet set : old) {
+            set.close();
+        }
+    }
+
+    int size() {
+        synchronized (sets) {
+            return sets.size();
+        }
+    }
+
+    private ClearanceSet parse(String clearanceString) {
+        LinkedHashMap<String, Clearance> clearances = new LinkedHashMap<>();
+        for (String clearance : StringUtils.stringToCollection(clearanceString)) {
+            Clearance clr = null;
+            try {
+                clr = Handles.opened(new Clearance(clearance));
+                Clearance previous = clearances.put(clr.policy().policy_id(), clr);
+                if (previous != null) {
+                    // Two clearances for one policy; the last one wins, as before.
+                    Handles.release(previous);
+                }
+            } catch (SIOException e) {
+                Log.warn("Bad Clearance in clearance string: ", e);
+                Handles.release(clr);
+            }
+        }
+        return new ClearanceSet(clearanceString, clearances);
+    }
+}
@@ -4,25 +4,22 @@ import com.surevine.spiffing.Clearance;
 import com.surevine.spiffing.Label;
 import com.surevine.spiffing.SIOException;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
+import org.dom4j.QName;
 import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
 import org.jivesoftware.openfire.labelling.SecurityLabel;
 import org.jivesoftware.openfire.labelling.SecurityLabelException;
-import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.PacketError;
 
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -35,72 +32,144 @@ public class ClearanceHandler extends IQHandler {
     NewPlugin plugin;
     IQHandlerInfo info;
     static String NS_CLEARANCE = "http://surevine.com/spiffing";
+    static String PROP_ITEM_CACHE_SIZE = "spiffing.cache.clearance.items.size";
+    private static final Element NO_ITEM = DocumentHelper.createElement("none");
+    private final PolicyDocuments policyDocuments;
+
+    // Rendered clearance items, keyed by clearance, the other party's clearance (if any) and policy.
+    private final LinkedHashMap<String, Element> items;
+    // Bumped by invalidate(), so items rendered before it aren't cached after it. Guarded by items.
+    private long generation = 0;
 
     public ClearanceHandler(NewPlugin plugin) {
         super("Clearance Handler");
         this.plugin = plugin;
         this.info = new IQHandlerInfo("clearance", NS_CLEARANCE);
+        this.policyDocuments = new PolicyDocuments(plugin.getEnvironment(), NS_CLEARANCE);
+        final int maxSize = plugin.getEnvironment().getIntProperty(PROP_ITEM_CACHE_SIZE, 1000);
+        this.items = new LinkedHashMap<String, Element>(16, (float) 0.75, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Element> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Drop all rendered clearance items, for when the policies change.
+     */
+    void invalidate() {
+        synchronized (items) {
+            items.clear();
+            ++generation;
+        }
+    }
+
+    /**
+     * Drop the copy of the policy documents, for when the policies are reloaded.
+     */
+    void invalidatePolicies() {
+        policyDocuments.invalidate();
+    }
 
+    /**
+     * The rendered item for a clearance in one policy, restricted by the other party's clearance in that
+     * policy if there is one. Returns null if the two don't combine. The element is shared; copy it.
+     */
+    private Element clearanceItem(ClearanceSet clearances, ClearanceSet other, String policy_id) throws SIOException, DocumentException {
+        String key = clearances.key() + '\n' + (other == null ? "" : other.key()) + '\n' + policy_id;
+        Element item;
+        long gen;
+        synchronized (items) {
+            item = items.get(key);
+            gen = generation;
+        }
+        if (item == null) {
+            item = renderItem(clearances, other, policy_id);
+            synchronized (items) {
+                if (generation == gen) {
+                    items.put(key, item);
+                }
+            }
+        }
+        return item == NO_ITEM ? null : item;
+    }
+
+    private Element renderItem(ClearanceSet clearances, ClearanceSet other, String policy_id) throws SIOException, DocumentException {
+        Clearance combined = null;
+        try {
+            Clearance clearance = clearances.get(policy_id);
+            if (other != null) {
+                try {
+                    combined = Handles.opened(clearance.restrict(other.get(policy_id)));
+                } catch (SIOException ex) {
+                    Log.debug("Exception thrown when combining clearances: ", ex);
+                    return NO_ITEM;
+                }
+                clearance = combined;
+            }
+            Element item = DocumentHelper.createElement(QName.get("item", NS_CLEARANCE));
+            item.addAttribute("policy-id", policy_id);
+            item.addAttribute("policy", clearance.policy().name());
+            item.add(DocumentHelper.parseText(clearance.toNATOXML()).getRootElement().detach());
+            return item;
+        } finally {
+            Handles.release(combined);
+        }
     }
 
     @Override
     public IQ handleIQ(IQ packet) throws UnauthorizedException {
+        return this.plugin.getIQExecutor().submit(packet, this::answer);
+    }
+
+    /**
+     * Compute the reply synchronously.
+     */
+    IQ answer(IQ packet) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try (LabelCache.Guard guard = this.plugin.enter()) {
+            IQ reply = handleGuardedIQ(packet);
+            failed = reply.getError() != null;
+            return reply;
+        } finally {
+            this.plugin.metrics.clearance.record(start, failed);
+        }
+    }
+
+    private IQ handleGuardedIQ(IQ packet) {
         IQ reply = IQ.createResultIQ(packet);
         Element req = packet.getChildElement();
         if (req.getName().equals("clearance")) {
             Element catalog = reply.setChildElement("clearance", NS_CLEARANCE);
-            LinkedHashMap<String, Clearance> target_clearance = this.plugin.getSpiffingClearance(packet.getFrom());
-            boolean any = false;
-            if (catalog.attribute("for") == null) {
-                LinkedHashMap<String, Clearance> for_clearance = this.plugin.getSpiffingClearance(catalog.attributeValue("for"));
-                for (Map.Entry<String, Clearance> e : target_clearance.entrySet()) {
-                    if (for_clearance.containsKey(e.getKey())) {
-                        try (Clearance combined = e.getValue().restrict(for_clearance.get(e.getKey()))) {
-                            SAXReader reader = new SAXReader();
-                            reader.setEncoding("UTF-8");
-                            try {
-                                Element item = catalog.addElement("item");
-                                item.addAttribute("policy-id", e.getKey());
-                                item.addAttribute("policy", combined.policy().name());
-                                Element nato = reader.read(new StringReader(combined.toNATOXML())).getRootElement();
-                                item.add(nato.createCopy());
-                                any = true;
-                            } catch (SIOException ex) {
-                                Log.warn("Internal spiffing error: ", ex);
-                                reply.setError(PacketError.Condition.internal_server_error);
-                            } catch (DocumentException ex) {
-                                Log.warn("Encoded label does not parse: ", ex);
-                                reply.setError(PacketError.Condition.internal_server_error);
-                            }
-                        } catch (Exception ex) {
-                            Log.debug("Exception thrown when combining clearances: ", ex);
-                        }
+            String forAttr = req.attributeValue("for");
+            try (ClearanceSet target_clearance = this.plugin.getSpiffingClearance(packet.getFrom());
+                 ClearanceSet for_clearance = forAttr == null ? null : this.plugin.getSpiffingClearance(new JID(forAttr))) {
+                for (String policy_id : target_clearance.policies()) {
+                    if (for_clearance != null && !for_clearance.containsKey(policy_id)) {
+                        continue;
+                    }
+                    Element item = clearanceItem(target_clearance, for_clearance, policy_id);
+                    if (item != null) {
+                        catalog.add(item.createCopy());
                     }
                 }
-            }
-            for (Map.Entry<String, Clearance> e : target_clearance.entrySet()) {
-                SAXReader reader = new SAXReader();
-                reader.setEncoding("UTF-8");
-                try {
-                    Element item = catalog.addElement("item");
-                    item.addAttribute("policy-id", e.getKey());
-                    item.addAttribute("policy", e.getValue().policy().name());
-                    Element nato = reader.read(new StringReader(e.getValue().toNATOXML())).getRootElement();
-                    item.add(nato.createCopy());
-                } catch (SIOException ex) {
-                    Log.warn("Internal spiffing error: ", ex);
-                    reply.setError(PacketError.Condition.internal_server_error);
-                } catch (DocumentException ex) {
-                    Log.warn("Encoded label does not parse: ", ex);
-                    reply.setError(PacketError.Condition.internal_server_error);
-                }
+            } catch (IllegalArgumentException ex) {
+                Log.debug("Bad JID in clearance query: ", ex);
+                reply.setError(PacketError.Condition.jid_malformed);
+            } catch (SIOException ex) {
+                Log.warn("Internal spiffing error: ", ex);
+                reply.setError(PacketError.Condition.internal_server_error);
+            } catch (DocumentException ex) {
+                Log.warn("Encoded clearance does not parse: ", ex);
+                reply.setError(PacketError.Condition.internal_server_error);
             }
         } else if (req.getName().equals("label")) {
             SecurityLabel secLabel = new SecurityLabel(req.element("securitylabel"));
             Element labelcheck = reply.setChildElement("label", NS_CLEARANCE);
             try {
                 String cls = this.plugin.getClearance(packet.getFrom());
-                SecurityLabel equiv = this.plugin.check(cls, secLabel, packet.getFrom());
+                SecurityLabel equiv = this.plugin.check(cls, secLabel, packet.getFrom(), packet.getFrom());
                 if (equiv != null) {
                     secLabel = equiv;
                 }
@@ -110,14 +179,8 @@ public class ClearanceHandler extends IQHandler {
                 reply.setError(PacketError.Condition.forbidden);
             }
         } else { // TODO * Assume policy
-            Element policies = reply.setChildElement("policy", NS_CLEARANCE);
             try {
-                for (String policyFile : StringUtils.stringToCollection(JiveGlobals.getProperty(NewPlugin.PROP_POLICY_FILES))) {
-                    SAXReader reader = new SAXReader();
-                    reader.setEncoding("UTF-8");
-                    Element nato = reader.read(new FileReader(policyFile)).getRootElement();
-                    policies.add(nato.createCopy());
-                }
+                reply.setChildElement(policyDocuments.get().createCopy());
             } catch (IOException e) {
                 Log.warn("Failed to read policy file: ", e);
                 reply.setError(PacketError.Condition.internal_server_error);
@@ -0,0 +1,91 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Clearance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable, shared set of parsed Clearances, keyed by policy id.
+ *
+ * Sets are handed out by the ClearanceCache already retained; callers must close() them
+ * when done. The native Clearance handles are freed only once the cache and every caller
+ * have released the set.
+ */
+public final class ClearanceSet implements AutoCloseable {
+    private static final Logger Log = LoggerFactory.getLogger(ClearanceSet.class);
+    private final String key;
+    private final Map<String, Clearance> clearances;
+    private final AtomicInteger refs = new AtomicInteger(1);
+    private final ConcurrentHashMap<String, Object> compiled = new ConcurrentHashMap<>();
+
+    ClearanceSet(String key, LinkedHashMap<String, Clearance> clearances) {
+        this.key = key;
+        this.clearances = Collections.unmodifiableMap(clearances);
+    }
+
+    /**
+     * The canonical clearance string this set was parsed from.
+     */
+    public String key() {
+        return key;
+    }
+
+    public boolean containsKey(String policy_id) {
+        return clearances.containsKey(policy_id);
+    }
+
+    public Clearance get(String policy_id) {
+        return clearances.get(policy_id);
+    }
+
+    /**
+     * The compiled lattice form of the clearance in the policy, if set.
+     */
+    Object compiled(String policy_id) {
+        return compiled.get(policy_id);
+    }
+
+    void compiled(String policy_id, Object bits) {
+        compiled.put(policy_id, bits);
+    }
+
+    public Set<String> policies() {
+        return clearances.keySet();
+    }
+
+    public Set<Map.Entry<String, Clearance>> entrySet() {
+        return clearances.entrySet();
+    }
+
+    public boolean isEmpty() {
+        return clearances.isEmpty();
+    }
+
+    ClearanceSet retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    @Override
+    public void close() {
+        int remaining = refs.decrementAndGet();
+        if (remaining == 0) {
+            free();
+        } else if (remaining < 0) {
+            Log.warn("ClearanceSet released too many times: " + key);
+        }
+    }
+
+    private void free() {
+        for (Clearance c : clearances.values()) {
+            Handles.release(c);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoised ACDF outcomes, keyed by clearance string, label key and rewrite policy set.
+ *
+ * Outcomes hold label keys rather than native Labels, so cached decisions never keep an
+ * evicted Label alive. They can also be shared, serialised as strings, through a second-level
+ * map such as a clustered Openfire cache. Shared keys include a digest of the SPIF files and
+ * default label in use, so nodes only share decisions made against the same ones. Shared writes
+ * are made best-effort on a background thread rather than on the caller's. Only fetch(), for
+ * background work, reads the shared map; get() stays local, since a shared read can be a network
+ * round trip.
+ */
+class DecisionCache {
+    private static final Logger Log = LoggerFactory.getLogger(DecisionCache.class);
+    private final int maxSize;
+    private final ConcurrentHashMap<Key, Decision> decisions = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Map<String, String> shared;
+    private final ThreadPoolExecutor sharedWriter;
+    /** Digest of the policies in use, or null if shared decisions are suspended. */
+    private volatile String scope = null;
+
+    DecisionCache(int maxSize) {
+        this(maxSize, null);
+    }
+
+    DecisionCache(int maxSize, Map<String, String> shared) {
+        this.maxSize = maxSize;
+        this.shared = shared;
+        if (shared != null) {
+            // One writer with a bounded queue; when it falls behind, writes are simply not shared.
+            this.sharedWriter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(1000), r -> {
+                        Thread t = new Thread(r, "spiffing-shared-decisions");
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+        } else {
+            this.sharedWriter = null;
+        }
+    }
+
+    /**
+     * Set the policies decisions are made against, from their ids and the SHA-256 of each SPIF file,
+     * and the default label, which unlabelled stanzas are decided with. If any policy has no hash,
+     * decisions are not shared until the next call.
+     */
+    void setPolicies(Collection<String> policy_ids, Map<String, String> hashes, String defaultLabel) {
+        if (shared == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String policy_id : new TreeSet<>(policy_ids)) {
+            String hash = hashes.get(policy_id);
+            if (hash == null) {
+                Log.warn("No hash for policy " + policy_id + "; not sharing decisions");
+                scope = null;
+                return;
+            }
+            sb.append(policy_id).append('=').append(hash).append('\n');
+        }
+        if (defaultLabel != null) {
+            sb.append('\n').append(defaultLabel);
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder(16);
+        for (int i = 0; i != 8; ++i) {
+            hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        scope = hex.toString();
+    }
+
+    Decision get(String clearance, String label, Set<String> policies) {
+        Decision d = decisions.get(new Key(clearance, label, policies));
+        if (d == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return d;
+    }
+
+    /**
+     * Like get(), but on a local miss also reads the shared map, keeping what it finds. The read may
+     * block on the network, so this is for background work such as warm-up, and isn't counted in the
+     * hit rate.
+     */
+    Decision fetch(String clearance, String label, Set<String> policies) {
+        Key key = new Key(clearance, label, policies);
+        Decision d = decisions.get(key);
+        String scope = this.scope;
+        if (d == null && scope != null) {
+            try {
+                d = Decision.decode(shared.get(scope + '\0' + key));
+            } catch (RuntimeException e) {
+                Log.debug("Couldn't read shared decision: ", e);
+            }
+            if (d != null) {
+                putLocal(key, d);
+            }
+        }
+        return d;
+    }
+
+    void put(String clearance, String label, Set<String> policies, Decision decision) {
+        Key key = new Key(clearance, label, policies);
+        putLocal(key, decision);
+        final String scope = this.scope;
+        if (scope != null) {
+            final String sharedKey = scope + '\0' + key;
+            final String encoded = decision.encode();
+            sharedWriter.execute(() -> {
+                try {
+                    shared.put(sharedKey, encoded);
+                } catch (RuntimeException e) {
+                    Log.debug("Couldn't share decision: ", e);
+                }
+            });
+        }
+    }
+
+    private void putLocal(Key key, Decision decision) {
+        Shedding.makeRoom(decisions, maxSize);
+        decisions.put(key, decision);
+    }
+
+    /**
+     * Drop this node's decisions. Shared decisions are scoped by setPolicies(), so they needn't be.
+     */
+    void invalidateAll() {
+        decisions.clear();
+    }
+
+    /**
+     * Drop the shared decisions, for every node. Call from the one node that saw the change.
+     */
+    void invalidateShared() {
+        if (shared != null) {
+            shared.clear();
+        }
+    }
+
+    int size() {
+        return decisions.size();
+    }
+
+    /**
+     * Stop sharing decisions, abandoning any shared writes not yet made.
+     */
+    void close() {
+        if (sharedWriter != null) {
+            sharedWriter.shutdownNow();
+        }
+    }
+
+    int capacity() {
+        return maxSize;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    static final class Decision {
+        /** Set when access is denied. */
+        final String reason;
+        /** The label key to deliver, or null if no rewrite was requested. */
+        final String result;
+        /** True if the delivered label is the input label itself, in which case result is its key. */
+        final boolean unchanged;
+
+        private Decision(String reason, String result, boolean unchanged) {
+            this.reason = reason;
+            this.result = result;
+            this.unchanged = unchanged;
+        }
+
+        static Decision allow(String result, boolean unchanged) {
+            if (unchanged && result == null) {
+                throw new IllegalArgumentException("Unchanged decision without a label key");
+            }
+            return new Decision(null, result, unchanged);
+        }
+
+        static Decision deny(String reason) {
+            return new Decision(reason, null, false);
+        }
+
+        boolean allowed() {
+            return reason == null;
+        }
+
+        String encode() {
+            if (reason != null) {
+                return "-" + reason;
+            } else if (result == null) {
+                return "0";
+            }
+            return (unchanged ? "=" : "+") + result;
+        }
+
+        static Decision decode(String encoded) {
+            if (encoded == null || encoded.isEmpty()) {
+                return null;
+            }
+            switch (encoded.charAt(0)) {
+                case '-':
+                    return deny(encoded.substring(1));
+                case '0':
+                    return allow(null, false);
+                case '=':
+                    return encoded.length() == 1 ? null : allow(encoded.substring(1), true);
+                case '+':
+                    return allow(encoded.substring(1), false);
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final class Key {
+        private final String clearance;
+        private final String label;
+        private final String policies;
+        private final int hash;
+
+        Key(String clearance, String label, Set<String> policies) {
+            this.clearance = clearance;
+            this.label = label;
+            this.policies = policies == null ? null : String.join(",", new TreeSet<>(policies));
+            this.hash = 31 * (31 * clearance.hashCode() + label.hashCode()) + (this.policies == null ? 0 : this.policies.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return clearance + '\0' + label + '\0' + (policies == null ? "\0" : policies);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && clearance.equals(k.clearance) && label.equals(k.label)
+                    && (policies == null ? k.policies == null : policies.equals(k.policies));
+        }
+    }
+}
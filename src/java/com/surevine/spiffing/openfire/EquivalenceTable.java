@@ -0,0 +1,85 @@
+package com.surevine.spiffing.openfire;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Translation table from (source label key, target policy id) to the key of the equivalent
+ * label in the target policy, as produced by Label.encrypt().
+ *
+ * Missing mappings are recorded too, so a policy pair with no translation is only tried once.
+ */
+class EquivalenceTable {
+    /** Marker for a cached "no mapping" result; compared by identity. */
+    static final String NO_MAPPING = new String("no mapping");
+
+    private final int maxSize;
+    private final ConcurrentHashMap<Key, String> table = new ConcurrentHashMap<>();
+
+    EquivalenceTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the equivalent label key, NO_MAPPING, or null if the translation has not been attempted.
+     */
+    String get(String source, String policy_id) {
+        return table.get(new Key(source, policy_id));
+    }
+
+    void put(String source, String policy_id, String equivalent) {
+        Shedding.makeRoom(table, maxSize);
+        table.put(new Key(source, policy_id), equivalent);
+    }
+
+    void putMissing(String source, String policy_id) {
+        put(source, policy_id, NO_MAPPING);
+    }
+
+    interface Visitor {
+        void visit(String source, String policy_id, String equivalent);
+    }
+
+    /**
+     * Visit every entry, including NO_MAPPING results.
+     */
+    void forEach(Visitor visitor) {
+        for (Map.Entry<Key, String> e : table.entrySet()) {
+            visitor.visit(e.getKey().source, e.getKey().policy_id, e.getValue());
+        }
+    }
+
+    void invalidateAll() {
+        table.clear();
+    }
+
+    int size() {
+        return table.size();
+    }
+
+    private static final class Key {
+        private final String source;
+        private final String policy_id;
+        private final int hash;
+
+        Key(String source, String policy_id) {
+            this.source = source;
+            this.policy_id = policy_id;
+            this.hash = 31 * source.hashCode() + policy_id.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && policy_id.equals(k.policy_id) && source.equals(k.source);
+        }
+    }
+}
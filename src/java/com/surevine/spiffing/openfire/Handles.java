@@ -0,0 +1,153 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Clearance;
+import com.surevine.spiffing.Label;
+import com.surevine.spiffing.Site;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounting for the native spiffing objects the plugin creates. Every Label, Clearance and Site is
+ * registered here when created, and freed through release(), which frees each exactly once:
+ * releasing an object that isn't live is logged and skipped rather than passed to native code.
+ *
+ * Live counts are always kept. With leak tracking on, each registration also records a stack
+ * trace, and report() shows where the survivors came from.
+ */
+final class Handles {
+    private static final Logger Log = LoggerFactory.getLogger(Handles.class);
+    private static final int STRIPES = 16;
+
+    enum Kind {
+        LABEL, CLEARANCE, SITE
+    }
+
+    private static final List<Map<Object, Object>> live = new ArrayList<>(STRIPES);
+    private static final AtomicLong[] counts = new AtomicLong[Kind.values().length];
+    private static volatile boolean tracking = false;
+
+    static {
+        for (int i = 0; i != STRIPES; ++i) {
+            live.add(new IdentityHashMap<>());
+        }
+        for (int i = 0; i != counts.length; ++i) {
+            counts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Where a tracked handle was created.
+     */
+    private static final class Origin extends Throwable {
+        private static final long serialVersionUID = 1L;
+        final Kind kind;
+
+        Origin(Kind kind) {
+            super(kind + " allocated");
+            this.kind = kind;
+        }
+    }
+
+    private Handles() {
+    }
+
+    static void setTracking(boolean on) {
+        tracking = on;
+    }
+
+    static Label opened(Label label) {
+        register(label, Kind.LABEL);
+        return label;
+    }
+
+    static Clearance opened(Clearance clearance) {
+        register(clearance, Kind.CLEARANCE);
+        return clearance;
+    }
+
+    static Site opened(Site site) {
+        register(site, Kind.SITE);
+        return site;
+    }
+
+    private static void register(Object handle, Kind kind) {
+        Object record = tracking ? new Origin(kind) : kind;
+        Map<Object, Object> stripe = stripe(handle);
+        synchronized (stripe) {
+            stripe.put(handle, record);
+        }
+        counts[kind.ordinal()].incrementAndGet();
+    }
+
+    /**
+     * Free a registered native object, unless it has already been freed.
+     */
+    static void release(Object handle) {
+        if (handle == null) {
+            return;
+        }
+        Object record;
+        Map<Object, Object> stripe = stripe(handle);
+        synchronized (stripe) {
+            record = stripe.remove(handle);
+        }
+        if (record == null) {
+            Log.warn("Native " + handle.getClass().getSimpleName() + " released twice, or never registered; not freeing it",
+                    tracking ? new Throwable("Released here") : null);
+            return;
+        }
+        Kind kind = record instanceof Origin ? ((Origin) record).kind : (Kind) record;
+        counts[kind.ordinal()].decrementAndGet();
+        try {
+            if (handle instanceof Label) {
+                ((Label) handle).dispose();
+            } else if (handle instanceof Clearance) {
+                ((Clearance) handle).close();
+            } else if (handle instanceof Site) {
+                ((Site) handle).dispose();
+            }
+        } catch (Exception e) {
+            Log.warn("While freeing native " + kind + ": ", e);
+        }
+    }
+
+    static long live(Kind kind) {
+        return counts[kind.ordinal()].get();
+    }
+
+    /**
+     * Log the live handle counts, and with tracking on, where up to ten of the live handles were created.
+     */
+    static void report() {
+        StringBuilder sb = new StringBuilder("Live native handles:");
+        for (Kind kind : Kind.values()) {
+            sb.append(' ').append(kind).append('=').append(live(kind));
+        }
+        Log.info(sb.toString());
+        if (!tracking) {
+            return;
+        }
+        int shown = 0;
+        for (Map<Object, Object> stripe : live) {
+            List<Object> records;
+            synchronized (stripe) {
+                records = new ArrayList<>(stripe.values());
+            }
+            for (Object record : records) {
+                if (record instanceof Origin && shown++ < 10) {
+                    Log.warn("Live handle: ", (Origin) record);
+                }
+            }
+        }
+    }
+
+    private static Map<Object, Object> stripe(Object handle) {
+        return live.get(System.identityHashCode(handle) & (STRIPES - 1));
+    }
+}
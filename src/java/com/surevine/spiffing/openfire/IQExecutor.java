@@ -0,0 +1,139 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the catalogue and clearance handlers off Openfire's IQ routing threads, and routes their
+ * replies when they're done.
+ *
+ * Uses a fixed pool of platform threads: the handlers spend their time in native calls, which would
+ * pin virtual threads to their carriers anyway, and pooled threads reuse their label cache Guards.
+ * The number of outstanding requests is bounded overall and per user; a request over either limit
+ * gets an immediate resource-constraint error rather than queueing.
+ *
+ * A separate fork-join pool, shared by all requests, runs the per-label work of large catalogues.
+ */
+class IQExecutor {
+    private static final Logger Log = LoggerFactory.getLogger(IQExecutor.class);
+    static String PROP_THREADS = "spiffing.iq.threads";
+    static String PROP_MAX_PENDING = "spiffing.iq.pending";
+    static String PROP_MAX_PER_USER = "spiffing.iq.peruser";
+    static String PROP_PARALLELISM = "spiffing.iq.parallelism";
+    private final PluginEnvironment env;
+    private final ExecutorService executor;
+    private final ForkJoinPool forkJoin;
+    private final Semaphore pending;
+    private final int perUser;
+    private final ConcurrentHashMap<String, AtomicInteger> users = new ConcurrentHashMap<>();
+
+    IQExecutor(PluginEnvironment env) {
+        this.env = env;
+        this.pending = new Semaphore(env.getIntProperty(PROP_MAX_PENDING, 1000));
+        this.perUser = env.getIntProperty(PROP_MAX_PER_USER, 4);
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "spiffing-iq-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = Executors.newFixedThreadPool(
+                env.getIntProperty(PROP_THREADS, Math.max(4, Runtime.getRuntime().availableProcessors())), factory);
+        this.forkJoin = new ForkJoinPool(env.getIntProperty(PROP_PARALLELISM, Runtime.getRuntime().availableProcessors()),
+                pool -> {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    t.setName("spiffing-eval-" + t.getPoolIndex());
+                    t.setDaemon(true);
+                    return t;
+                }, null, false);
+    }
+
+    /**
+     * The pool for splitting a single request's work across cores.
+     */
+    ForkJoinPool forkJoinPool() {
+        return forkJoin;
+    }
+
+    /**
+     * Answer the request on the executor and route the reply. Returns an error reply if the request
+     * can't be accepted, otherwise null; the caller should return this from handleIQ.
+     */
+    IQ submit(final IQ packet, final Function<IQ, IQ> handler) {
+        final String user = packet.getFrom() == null ? "" : packet.getFrom().toBareJID();
+        final AtomicInteger count = users.computeIfAbsent(user, k -> new AtomicInteger());
+        if (count.incrementAndGet() > perUser) {
+            release(user, count);
+            return busy(packet);
+        }
+        if (!pending.tryAcquire()) {
+            release(user, count);
+            return busy(packet);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    IQ reply = handler.apply(packet);
+                    if (reply != null) {
+                        env.route(reply);
+                    }
+                } catch (RuntimeException e) {
+                    Log.warn("Failed handling IQ: ", e);
+                    IQ reply = IQ.createResultIQ(packet);
+                    reply.setChildElement(packet.getChildElement().createCopy());
+                    reply.setError(PacketError.Condition.internal_server_error);
+                    env.route(reply);
+                } finally {
+                    pending.release();
+                    release(user, count);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.release();
+            release(user, count);
+            return busy(packet);
+        }
+        return null;
+    }
+
+    private void release(String user, AtomicInteger count) {
+        if (count.decrementAndGet() == 0) {
+            // A racing submit may still bump the removed counter; that request is merely uncapped.
+            users.remove(user, count);
+        }
+    }
+
+    private static IQ busy(IQ packet) {
+        IQ reply = IQ.createResultIQ(packet);
+        reply.setChildElement(packet.getChildElement().createCopy());
+        reply.setError(PacketError.Condition.resource_constraint);
+        return reply;
+    }
+
+    void shutdown() {
+        forkJoin.shutdown();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
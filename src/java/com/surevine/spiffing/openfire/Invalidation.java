@@ -0,0 +1,34 @@
+package com.surevine.spiffing.openfire;
+
+/**
+ * A change one node has seen which every node's caches must hear about.
+ */
+final class Invalidation {
+    enum Kind {
+        /** The SPIF files changed; reload them. */
+        POLICIES,
+        /** A user was modified or deleted, possibly changing its clearance; subject is the username. */
+        USER
+    }
+
+    final Kind kind;
+    final String subject;
+
+    Invalidation(Kind kind, String subject) {
+        this.kind = kind;
+        this.subject = subject;
+    }
+
+    static Invalidation policies() {
+        return new Invalidation(Kind.POLICIES, null);
+    }
+
+    static Invalidation user(String username) {
+        return new Invalidation(Kind.USER, username);
+    }
+
+    @Override
+    public String toString() {
+        return subject == null ? kind.toString() : kind + ":" + subject;
+    }
+}
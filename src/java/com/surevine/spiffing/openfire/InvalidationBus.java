@@ -0,0 +1,64 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+/**
+ * Carries Invalidations between plugin instances.
+ *
+ * When Openfire clustering is running, events go to the other nodes as an InvalidationTask. Every
+ * bus in this JVM other than the sender also receives them, so several plugin instances in one
+ * process can stand in for a cluster.
+ */
+class InvalidationBus {
+    private static final Logger Log = LoggerFactory.getLogger(InvalidationBus.class);
+    private static final Set<InvalidationBus> buses = new CopyOnWriteArraySet<>();
+    private final Consumer<Invalidation> listener;
+
+    InvalidationBus(Consumer<Invalidation> listener) {
+        this.listener = listener;
+        buses.add(this);
+    }
+
+    void publish(Invalidation event) {
+        for (InvalidationBus bus : buses) {
+            if (bus != this) {
+                bus.receive(event);
+            }
+        }
+        if (ClusterManager.isClusteringStarted()) {
+            try {
+                CacheFactory.doClusterTask(new InvalidationTask(event));
+            } catch (RuntimeException e) {
+                Log.warn("Couldn't send " + event + " to the cluster: ", e);
+            }
+        }
+    }
+
+    /**
+     * Deliver an event from another node to every bus in this JVM.
+     */
+    static void deliver(Invalidation event) {
+        for (InvalidationBus bus : buses) {
+            bus.receive(event);
+        }
+    }
+
+    private void receive(Invalidation event) {
+        try {
+            listener.accept(event);
+        } catch (RuntimeException e) {
+            Log.warn("Failed applying " + event + ": ", e);
+        }
+    }
+
+    void close() {
+        buses.remove(this);
+    }
+}
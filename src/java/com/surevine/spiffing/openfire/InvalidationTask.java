@@ -0,0 +1,49 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.util.cache.ClusterTask;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Runs an Invalidation on another cluster node.
+ */
+public class InvalidationTask implements ClusterTask<Void> {
+    private static final long serialVersionUID = 1L;
+    private Invalidation event;
+
+    public InvalidationTask() {
+        // For deserialisation.
+    }
+
+    InvalidationTask(Invalidation event) {
+        this.event = event;
+    }
+
+    @Override
+    public void run() {
+        InvalidationBus.deliver(event);
+    }
+
+    @Override
+    public Void getResult() {
+        return null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeUTF(event.kind.name());
+        out.writeBoolean(event.subject != null);
+        if (event.subject != null) {
+            out.writeUTF(event.subject);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        Invalidation.Kind kind = Invalidation.Kind.valueOf(in.readUTF());
+        String subject = in.readBoolean() ? in.readUTF() : null;
+        event = new Invalidation(kind, subject);
+    }
+}
@@ -0,0 +1,377 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache of native Labels, keyed by their encoded form.
+ *
+ * Entries are spread across independently locked stripes, each running a segmented LRU
+ * (a probation segment for new entries and a protected segment for entries seen twice),
+ * so a burst of one-off labels cannot flush the working set. Pinned entries are never evicted.
+ *
+ * Each entry can carry the label's rendered form, which lives and dies with the entry.
+ *
+ * Evicted labels are not closed immediately. Threads using labels do so between enter()
+ * and close() of the returned Guard; an evicted label is closed only once every thread which
+ * entered before its eviction has left. Other native resources can be retired the same way.
+ * A thread's Guard is only registered while it is inside, so short-lived threads leave nothing
+ * behind.
+ */
+class LabelCache {
+    private static final Logger Log = LoggerFactory.getLogger(LabelCache.class);
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<String, Entry> pinned = new ConcurrentHashMap<>();
+
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final Set<Guard> active = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<Guard> guard = ThreadLocal.withInitial(Guard::new);
+    private final ConcurrentLinkedQueue<Retired> retired = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock reclaiming = new ReentrantLock();
+
+    LabelCache(int maxSize, int concurrency) {
+        int n = 1;
+        while (n < concurrency) {
+            n <<= 1;
+        }
+        stripes = new Stripe[n];
+        int perStripe = Math.max(2, (maxSize + n - 1) / n);
+        for (int i = 0; i != n; ++i) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Marks the current thread as using cached labels until the Guard is closed. Reentrant.
+     */
+    Guard enter() {
+        Guard g = guard.get();
+        if (g.depth++ == 0) {
+            // Publish the epoch before touching any label, so reclaim() can't miss this thread.
+            g.entered = epoch.get();
+            active.add(g);
+        }
+        return g;
+    }
+
+    Label get(String key) {
+        Entry e = pinned.get(key);
+        if (e == null) {
+            e = stripe(key).get(key);
+        }
+        return e == null ? null : e.label;
+    }
+
+    /**
+     * Returns the entry for the key without counting it as a second hit.
+     */
+    Entry peek(String key) {
+        Entry e = pinned.get(key);
+        if (e == null) {
+            e = stripe(key).peek(key);
+        }
+        return e;
+    }
+
+    /**
+     * Caches the label under the key, returning whichever label is now cached there.
+     * If another label was already cached, the given one is disposed.
+     */
+    Label intern(String key, Label label) {
+        Entry existing = pinned.get(key);
+        if (existing == null) {
+            existing = stripe(key).putIfAbsent(key, new Entry(label));
+        }
+        if (existing != null && existing.label != label) {
+            Handles.release(label);
+            return existing.label;
+        }
+        return label;
+    }
+
+    /**
+     * Caches the label under the key such that it is never evicted.
+     */
+    Label pin(String key, Label label) {
+        Entry existing = pinned.putIfAbsent(key, new Entry(label));
+        if (existing != null && existing.label != label) {
+            Handles.release(label);
+            return existing.label;
+        }
+        Entry cached = stripe(key).remove(key);
+        if (cached != null && cached.label != label) {
+            retire(cached.label);
+        }
+        return label;
+    }
+
+    /**
+     * Allows a pinned label to be evicted; it is retired immediately.
+     */
+    void unpin(String key) {
+        Entry e = pinned.remove(key);
+        if (e != null) {
+            retire(e.label);
+        }
+    }
+
+    int size() {
+        int size = pinned.size();
+        for (Stripe s : stripes) {
+            size += s.size();
+        }
+        return size;
+    }
+
+    /**
+     * The number of labels evicted to make room.
+     */
+    long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Evicts every label, pinned or not, retiring them all.
+     */
+    void clear() {
+        List<Label> all = new ArrayList<>();
+        for (String key : pinned.keySet()) {
+            Entry e = pinned.remove(key);
+            if (e != null) {
+                all.add(e.label);
+            }
+        }
+        for (Stripe s : stripes) {
+            s.drain(all);
+        }
+        for (Label l : all) {
+            retire(l);
+        }
+    }
+
+    /**
+     * Closes every label, cached or awaiting reclamation. Only call once no thread can use them.
+     */
+    void close() {
+        List<AutoCloseable> all = new ArrayList<>();
+        for (Entry e : pinned.values()) {
+            all.add(e.label);
+        }
+        pinned.clear();
+        for (Stripe s : stripes) {
+            s.drain(all);
+        }
+        Retired r;
+        while ((r = retired.poll()) != null) {
+            all.add(r.resource);
+        }
+        for (AutoCloseable l : all) {
+            free(l);
+        }
+    }
+
+    private Stripe stripe(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * Retires a label pushed out of a full stripe. Only these count as evictions; clear(), unpin()
+     * and replacement by pin() retire labels without counting them.
+     */
+    private void evict(Label label) {
+        evictions.incrementAndGet();
+        retire(label);
+    }
+
+    /**
+     * Closes the resource once every thread currently using cached labels has left.
+     */
+    void retire(AutoCloseable resource) {
+        retired.add(new Retired(resource, epoch.getAndIncrement()));
+        reclaim();
+    }
+
+    private static void free(AutoCloseable resource) {
+        if (resource instanceof Label) {
+            Handles.release(resource);
+            return;
+        }
+        try {
+            resource.close();
+        } catch (Exception ex) {
+            Log.warn("While freeing retired resource: ", ex);
+        }
+    }
+
+    private void reclaim() {
+        if (!reclaiming.tryLock()) {
+            return;
+        }
+        try {
+            long oldest = IDLE;
+            for (Guard g : active) {
+                long e = g.entered;
+                if (e < oldest) {
+                    oldest = e;
+                }
+            }
+            for (Iterator<Retired> it = retired.iterator(); it.hasNext(); ) {
+                Retired r = it.next();
+                if (r.epoch < oldest) {
+                    it.remove();
+                    free(r.resource);
+                }
+            }
+        } finally {
+            reclaiming.unlock();
+        }
+    }
+
+    final class Guard implements AutoCloseable {
+        private volatile long entered = IDLE;
+        private int depth = 0;
+
+        @Override
+        public void close() {
+            if (--depth == 0) {
+                entered = IDLE;
+                active.remove(this);
+                if (!retired.isEmpty()) {
+                    reclaim();
+                }
+            }
+        }
+    }
+
+    static final class Entry {
+        final Label label;
+        volatile RenderedLabel rendered;
+        volatile Object lattice;
+
+        Entry(Label label) {
+            this.label = label;
+        }
+    }
+
+    private static final class Retired {
+        final AutoCloseable resource;
+        final long epoch;
+
+        Retired(AutoCloseable resource, long epoch) {
+            this.resource = resource;
+            this.epoch = epoch;
+        }
+    }
+
+    private final class Stripe {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<>(16, (float) 0.75, true);
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = Math.max(1, (capacity * 4) / 5);
+        }
+
+        synchronized Entry get(String key) {
+            Entry e = protect.get(key);
+            if (e == null) {
+                e = probation.remove(key);
+                if (e != null) {
+                    // Second hit; promote, demoting the least recently used protected entry if full.
+                    protect.put(key, e);
+                    if (protect.size() > protectedCapacity) {
+                        Iterator<Map.Entry<String, Entry>> it = protect.entrySet().iterator();
+                        Map.Entry<String, Entry> eldest = it.next();
+                        it.remove();
+                        probation.put(eldest.getKey(), eldest.getValue());
+                    }
+                }
+            }
+            return e;
+        }
+
+        synchronized Entry peek(String key) {
+            Entry e = protect.get(key);
+            if (e == null) {
+                e = probation.get(key);
+            }
+            return e;
+        }
+
+        Entry putIfAbsent(String key, Entry entry) {
+            Label evicted;
+            synchronized (this) {
+                Entry existing = protect.get(key);
+                if (existing == null) {
+                    existing = probation.get(key);
+                }
+                if (existing != null) {
+                    return existing;
+                }
+                probation.put(key, entry);
+                evicted = trim();
+            }
+            if (evicted != null) {
+                evict(evicted);
+            }
+            return null;
+        }
+
+        synchronized Entry remove(String key) {
+            Entry e = protect.remove(key);
+            if (e == null) {
+                e = probation.remove(key);
+            }
+            return e;
+        }
+
+        synchronized void values(List<? super Label> into) {
+            for (Entry e : protect.values()) {
+                into.add(e.label);
+            }
+            for (Entry e : probation.values()) {
+                into.add(e.label);
+            }
+        }
+
+        synchronized int size() {
+            return protect.size() + probation.size();
+        }
+
+        synchronized void drain(List<? super Label> into) {
+            values(into);
+            protect.clear();
+            probation.clear();
+        }
+
+        private Label trim() {
+            if (probation.size() + protect.size() <= capacity) {
+                return null;
+            }
+            LinkedHashMap<String, Entry> victims = probation.isEmpty() ? protect : probation;
+            Iterator<Map.Entry<String, Entry>> it = victims.entrySet().iterator();
+            Label victim = it.next().getValue().label;
+            it.remove();
+            return victim;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.openfire.labelling.SecurityLabel;
+
+/**
+ * The ACDF outcome for one recipient of a batch check: either denied with a reason, or allowed
+ * with the label to deliver (null to leave the stanza's label as it is).
+ */
+public final class LabelDecision {
+    private final String reason;
+    private final SecurityLabel label;
+
+    private LabelDecision(String reason, SecurityLabel label) {
+        this.reason = reason;
+        this.label = label;
+    }
+
+    static LabelDecision allow(SecurityLabel label) {
+        return new LabelDecision(null, label);
+    }
+
+    static LabelDecision deny(String reason) {
+        return new LabelDecision(reason, null);
+    }
+
+    public boolean allowed() {
+        return reason == null;
+    }
+
+    /**
+     * The label to deliver to this recipient, or null if unchanged. Each recipient gets its own copy.
+     */
+    public SecurityLabel label() {
+        return label;
+    }
+
+    /**
+     * Why access was denied, or null if allowed.
+     */
+    public String reason() {
+        return reason;
+    }
+}
@@ -0,0 +1,176 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.SIOException;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Node;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps incoming label elements to label cache keys without serialising them.
+ *
+ * Each element is reduced to a SHA-256 digest of its canonical content: namespace URIs rather than
+ * prefixes, and for ESS labels the base64 text without whitespace. The first serialisation seen for
+ * a digest becomes the key for every equivalent label after it, so asXML() runs once per distinct
+ * label rather than once per stanza. A cryptographic digest is used because a collision would
+ * substitute one label for another.
+ */
+class LabelKeys {
+    static final String NS_ESS = "urn:xmpp:sec-label:ess:0";
+    static final String NS_NATO = "urn:nato:stanag:4774:confidentialitymetadatalabel:1:0";
+    private static final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+    private final int maxSize;
+    private final ConcurrentHashMap<Digest, String> keys = new ConcurrentHashMap<>();
+
+    LabelKeys(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    String key(Element labelElement) throws SIOException {
+        boolean ess;
+        if (labelElement.getNamespaceURI().equals(NS_ESS)) {
+            ess = true;
+        } else if (labelElement.getNamespaceURI().equals(NS_NATO)) {
+            ess = false;
+        } else {
+            throw new SIOException("No idea what " + labelElement.getNamespaceURI() + " means.");
+        }
+        Digest digest = hashers.get().digest(labelElement, ess);
+        String key = keys.get(digest);
+        if (key == null) {
+            key = ess ? labelElement.getStringValue() : labelElement.asXML();
+            Shedding.makeRoom(keys, maxSize);
+            String existing = keys.putIfAbsent(digest, key);
+            if (existing != null) {
+                key = existing;
+            }
+        }
+        return key;
+    }
+
+    int size() {
+        return keys.size();
+    }
+
+    private static final class Digest {
+        private final byte[] bytes;
+        private final int hash;
+
+        Digest(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest && Arrays.equals(bytes, ((Digest) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Per-thread digest state. Strings are fed through a small buffer, so hashing allocates
+     * nothing but the result.
+     */
+    private static final class Hasher {
+        private final MessageDigest sha;
+        private final byte[] buf = new byte[512];
+        private int len = 0;
+
+        Hasher() {
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 unavailable", e);
+            }
+        }
+
+        Digest digest(Element labelElement, boolean ess) {
+            if (ess) {
+                essText(labelElement);
+            } else {
+                element(labelElement);
+            }
+            flush();
+            return new Digest(sha.digest());
+        }
+
+        private void essText(Element e) {
+            for (int i = 0, n = e.nodeCount(); i != n; ++i) {
+                Node node = e.node(i);
+                if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    String text = node.getText();
+                    for (int j = 0; j != text.length(); ++j) {
+                        char c = text.charAt(j);
+                        if (!Character.isWhitespace(c)) {
+                            put(c);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void element(Element e) {
+            tag('<');
+            string(e.getNamespaceURI());
+            string(e.getName());
+            for (int i = 0, n = e.attributeCount(); i != n; ++i) {
+                Attribute a = e.attribute(i);
+                tag('@');
+                string(a.getNamespaceURI());
+                string(a.getName());
+                string(a.getValue());
+            }
+            for (int i = 0, n = e.nodeCount(); i != n; ++i) {
+                Node node = e.node(i);
+                switch (node.getNodeType()) {
+                    case Node.ELEMENT_NODE:
+                        element((Element) node);
+                        break;
+                    case Node.TEXT_NODE:
+                    case Node.CDATA_SECTION_NODE:
+                        tag('"');
+                        string(node.getText());
+                        break;
+                    default:
+                        // Comments, processing instructions and namespace declarations don't change the label.
+                }
+            }
+            tag('>');
+        }
+
+        private void tag(char c) {
+            put(c);
+        }
+
+        private void string(String s) {
+            int n = s.length();
+            put((char) (n >>> 16));
+            put((char) n);
+            for (int i = 0; i != n; ++i) {
+                put(s.charAt(i));
+            }
+        }
+
+        private void put(char c) {
+            if (len + 2 > buf.length) {
+                flush();
+            }
+            buf[len++] = (byte) (c >>> 8);
+            buf[len++] = (byte) c;
+        }
+
+        private void flush() {
+            sha.update(buf, 0, len);
+            len = 0;
+        }
+    }
+}
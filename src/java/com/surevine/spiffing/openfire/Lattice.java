@@ -0,0 +1,368 @@
+package com.surevine.spiffing.openfire;
+
+import org.dom4j.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A SPIF compiled for dominance checks in Java: each classification becomes an ordinal, and each
+ * category a bit, with every tag set given its own run of long words.
+ *
+ * Labels and clearances are compiled from their NATO XML into LabelBits and ClearanceBits, reading
+ * the ConfidentialityInformation element where there is one, as in STANAG 4774 labels. A clearance
+ * dominates a label when it holds the label's classification, every restrictive category in the
+ * label, and at least one of the label's permissive categories in each permissive tag set that has
+ * any. Informative categories play no part.
+ *
+ * Anything the compiler doesn't recognise, in the SPIF or in a label or clearance, makes it give up
+ * (returning null) so the caller falls back to the native library.
+ */
+final class Lattice {
+    /**
+     * Cached in place of compiled bits for labels and clearances the compiler can't express.
+     */
+    static final Object UNCOMPILABLE = new Object();
+
+    enum TagType {
+        RESTRICTIVE, PERMISSIVE, INFORMATIVE
+    }
+
+    /**
+     * One tag set and category type, with its category bits.
+     */
+    static final class Tag {
+        final String name;
+        final TagType type;
+        final int firstWord;
+        final int words;
+        private final Map<String, Integer> bits;
+
+        Tag(String name, TagType type, int firstWord, Map<String, Integer> bits) {
+            this.name = name;
+            this.type = type;
+            this.firstWord = firstWord;
+            this.words = (bits.size() + 63) / 64;
+            this.bits = bits;
+        }
+    }
+
+    static final class LabelBits {
+        final Lattice lattice;
+        final int classification;
+        final long[] categories;
+
+        LabelBits(Lattice lattice, int classification, long[] categories) {
+            this.lattice = lattice;
+            this.classification = classification;
+            this.categories = categories;
+        }
+    }
+
+    static final class ClearanceBits {
+        final Lattice lattice;
+        final long classifications;
+        final long[] categories;
+
+        ClearanceBits(Lattice lattice, long classifications, long[] categories) {
+            this.lattice = lattice;
+            this.classifications = classifications;
+            this.categories = categories;
+        }
+    }
+
+    final String policy_id;
+    private final Map<String, Integer> classifications;
+    private final Map<String, Tag> tags;
+    private final List<Tag> permissive;
+    private final long[] restrictiveMask;
+    private final int words;
+
+    private Lattice(String policy_id, Map<String, Integer> classifications, Map<String, Tag> tags, int words) {
+        this.policy_id = policy_id;
+        this.classifications = classifications;
+        this.tags = tags;
+        this.words = words;
+        this.permissive = new ArrayList<>();
+        this.restrictiveMask = new long[words];
+        for (Tag tag : tags.values()) {
+            if (tag.type == TagType.PERMISSIVE) {
+                permissive.add(tag);
+            } else if (tag.type == TagType.RESTRICTIVE) {
+                for (int w = tag.firstWord; w != tag.firstWord + tag.words; ++w) {
+                    restrictiveMask[w] = -1L;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile an XML SPIF document, or return null if it uses anything this can't express.
+     */
+    static Lattice compile(Element spif) {
+        Element policy = spif.element("securityPolicyId");
+        if (policy == null || policy.attributeValue("id") == null) {
+            return null;
+        }
+        Map<String, Integer> classifications = new HashMap<>();
+        Element classes = spif.element("securityClassifications");
+        if (classes == null) {
+            return null;
+        }
+        for (Object o : classes.elements("securityClassification")) {
+            String name = ((Element) o).attributeValue("name");
+            if (name == null || classifications.size() == 64) {
+                return null;
+            }
+            classifications.put(name, classifications.size());
+        }
+        Map<String, Tag> tags = new HashMap<>();
+        int words = 0;
+        Element tagSets = spif.element("securityCategoryTagSets");
+        if (tagSets != null) {
+            for (Object o : tagSets.elements("securityCategoryTagSet")) {
+                Element tagSet = (Element) o;
+                String name = tagSet.attributeValue("name");
+                if (name == null) {
+                    return null;
+                }
+                for (Object t : tagSet.elements("securityCategoryTag")) {
+                    Element tag = (Element) t;
+                    TagType type = tagType(tag);
+                    if (type == null) {
+                        return null;
+                    }
+                    String key = tagKey(name, type);
+                    Tag existing = tags.get(key);
+                    Map<String, Integer> bits = new HashMap<>();
+                    if (existing != null) {
+                        // The same category type can appear under several tags of a tag set; merge them.
+                        bits.putAll(existing.bits);
+                        if (existing.firstWord + existing.words != words) {
+                            return null;
+                        }
+                        words = existing.firstWord;
+                    }
+                    for (Object c : tag.elements("tagCategory")) {
+                        String category = ((Element) c).attributeValue("name");
+                        if (category == null) {
+                            return null;
+                        }
+                        if (!bits.containsKey(category)) {
+                            bits.put(category, bits.size());
+                        }
+                    }
+                    Tag compiled = new Tag(name, type, words, bits);
+                    tags.put(key, compiled);
+                    words += compiled.words;
+                }
+            }
+        }
+        return new Lattice(policy.attributeValue("id"), classifications, tags, words);
+    }
+
+    private static TagType tagType(Element tag) {
+        String tagType = tag.attributeValue("tagType");
+        if ("enumerated".equals(tagType)) {
+            tagType = tag.attributeValue("enumType");
+        }
+        if ("restrictive".equals(tagType)) {
+            return TagType.RESTRICTIVE;
+        } else if ("permissive".equals(tagType)) {
+            return TagType.PERMISSIVE;
+        } else if ("tagType7".equals(tagType) || "informative".equals(tagType)) {
+            String encoding = tag.attributeValue("tag7Encoding");
+            return encoding == null || "informative".equals(tagType) ? TagType.INFORMATIVE : null;
+        }
+        return null;
+    }
+
+    private static String tagKey(String name, TagType type) {
+        return type + "\n" + name;
+    }
+
+    /**
+     * Compile a label's NATO XML, or return null.
+     */
+    LabelBits compileLabel(Element nato) {
+        List<Element> information = information(nato);
+        if (information == null) {
+            return null;
+        }
+        int classification = -1;
+        long[] categories = new long[words];
+        for (Element e : information) {
+            String name = e.getName();
+            if (name.equals("PolicyIdentifier")) {
+                continue;
+            } else if (name.equals("Classification")) {
+                Integer c = classifications.get(e.getTextTrim());
+                if (c == null || classification >= 0) {
+                    return null;
+                }
+                classification = c;
+            } else if (name.equals("Category")) {
+                if (!setCategories(e, categories)) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        if (classification < 0) {
+            return null;
+        }
+        return new LabelBits(this, classification, categories);
+    }
+
+    /**
+     * Compile a clearance's NATO XML, or return null.
+     */
+    ClearanceBits compileClearance(Element nato) {
+        List<Element> information = information(nato);
+        if (information == null) {
+            return null;
+        }
+        long classes = 0;
+        long[] categories = new long[words];
+        for (Element e : information) {
+            String name = e.getName();
+            if (name.equals("PolicyIdentifier")) {
+                continue;
+            } else if (name.equals("ClassificationList")) {
+                for (Object c : e.elements()) {
+                    Element classification = (Element) c;
+                    Integer bit = classifications.get(classification.getTextTrim());
+                    if (!classification.getName().equals("Classification") || bit == null) {
+                        return null;
+                    }
+                    classes |= 1L << bit;
+                }
+            } else if (name.equals("Classification")) {
+                Integer bit = classifications.get(e.getTextTrim());
+                if (bit == null) {
+                    return null;
+                }
+                classes |= 1L << bit;
+            } else if (name.equals("Category")) {
+                if (!setCategories(e, categories)) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return new ClearanceBits(this, classes, categories);
+    }
+
+    /**
+     * The elements holding the policy, classification and categories: the children of a
+     * ConfidentialityInformation element, or of the root if there is none. The creation time
+     * beside it is ignored; anything else there, or a second ConfidentialityInformation, gives null.
+     */
+    private static List<Element> information(Element nato) {
+        Element information = null;
+        List<Element> direct = new ArrayList<>();
+        for (Object o : nato.elements()) {
+            Element e = (Element) o;
+            String name = e.getName();
+            if (name.equals("ConfidentialityInformation")) {
+                if (information != null) {
+                    return null;
+                }
+                information = e;
+            } else if (!name.equals("CreationDateTime")) {
+                direct.add(e);
+            }
+        }
+        if (information == null) {
+            return direct;
+        } else if (!direct.isEmpty()) {
+            return null;
+        }
+        List<Element> result = new ArrayList<>();
+        for (Object o : information.elements()) {
+            result.add((Element) o);
+        }
+        return result;
+    }
+
+    private boolean setCategories(Element category, long[] categories) {
+        String tagName = category.attributeValue("TagName");
+        String typeName = category.attributeValue("Type");
+        if (tagName == null) {
+            return false;
+        }
+        List<Tag> matching = new ArrayList<>(1);
+        if (typeName == null) {
+            // Clearances needn't say which kind of category they hold.
+            for (TagType type : TagType.values()) {
+                Tag tag = tags.get(tagKey(tagName, type));
+                if (tag != null) {
+                    matching.add(tag);
+                }
+            }
+        } else {
+            TagType type;
+            try {
+                type = TagType.valueOf(typeName);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            Tag tag = tags.get(tagKey(tagName, type));
+            if (tag != null) {
+                matching.add(tag);
+            }
+        }
+        if (matching.isEmpty()) {
+            return false;
+        }
+        for (Object o : category.elements()) {
+            Element value = (Element) o;
+            if (!value.getName().equals("GenericValue")) {
+                return false;
+            }
+            boolean found = false;
+            for (Tag tag : matching) {
+                Integer bit = tag.bits.get(value.getTextTrim());
+                if (bit != null) {
+                    int b = tag.firstWord * 64 + bit;
+                    categories[b >>> 6] |= 1L << (b & 63);
+                    found = true;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean dominates(ClearanceBits clearance, LabelBits label) {
+        Lattice lattice = label.lattice;
+        if ((clearance.classifications & (1L << label.classification)) == 0) {
+            return false;
+        }
+        long[] held = clearance.categories;
+        long[] wanted = label.categories;
+        for (int w = 0; w != lattice.words; ++w) {
+            if ((wanted[w] & lattice.restrictiveMask[w] & ~held[w]) != 0) {
+                return false;
+            }
+        }
+        for (Tag tag : lattice.permissive) {
+            boolean any = false;
+            boolean overlap = false;
+            for (int w = tag.firstWord; w != tag.firstWord + tag.words; ++w) {
+                any |= wanted[w] != 0;
+                overlap |= (wanted[w] & held[w]) != 0;
+            }
+            if (any && !overlap) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,226 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and cache gauges for the plugin, exposed over JMX as
+ * com.surevine.spiffing:type=Metrics and as Prometheus text.
+ *
+ * Recording is a couple of LongAdder increments, so it can stay on in production.
+ */
+class Metrics implements DynamicMBean {
+    private static final Logger Log = LoggerFactory.getLogger(Metrics.class);
+    static final String OBJECT_NAME = "com.surevine.spiffing:type=Metrics";
+
+    final Operation check = new Operation("check");
+    final Operation checkBatch = new Operation("check_batch");
+    final Operation valid = new Operation("valid");
+    final Operation asESS = new Operation("asess");
+    final Operation rewrite = new Operation("rewrite");
+    final Operation catalogue = new Operation("catalogue");
+    final Operation clearance = new Operation("clearance");
+    final Operation dominates = new Operation("native_dominates");
+    final Operation encrypt = new Operation("native_encrypt");
+    private final Operation[] operations = {check, checkBatch, valid, asESS, rewrite, catalogue, clearance, dominates, encrypt};
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private ObjectName registered = null;
+
+    /**
+     * Latency histogram buckets are powers of two in microseconds, from 1us up to about 8s.
+     */
+    static final int BUCKETS = 24;
+
+    static final class Operation {
+        final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Operation(String name) {
+            this.name = name;
+            for (int i = 0; i != BUCKETS; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record one operation which began at the given System.nanoTime().
+         */
+        void record(long start, boolean failed) {
+            long elapsed = System.nanoTime() - start;
+            count.increment();
+            nanos.add(elapsed);
+            if (failed) {
+                failures.increment();
+            }
+            long micros = elapsed / 1000;
+            int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long failures() {
+            return failures.sum();
+        }
+
+        long totalNanos() {
+            return nanos.sum();
+        }
+    }
+
+    void gauge(String name, LongSupplier value) {
+        synchronized (gauges) {
+            gauges.put(name, value);
+        }
+    }
+
+    void register() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            }
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registered = name;
+        } catch (Exception e) {
+            Log.warn("Couldn't register metrics MBean: ", e);
+        }
+    }
+
+    void unregister() {
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (Exception e) {
+                Log.warn("Couldn't unregister metrics MBean: ", e);
+            }
+            registered = null;
+        }
+    }
+
+    /**
+     * Current values, by attribute name.
+     */
+    Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Operation op : operations) {
+            values.put(op.name + ".count", op.count());
+            values.put(op.name + ".failures", op.failures());
+            values.put(op.name + ".nanos", op.totalNanos());
+        }
+        synchronized (gauges) {
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                values.put(e.getKey(), e.getValue().getAsLong());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE spiffing_operation_seconds histogram\n");
+        for (Operation op : operations) {
+            long cumulative = 0;
+            for (int i = 0; i != BUCKETS - 1; ++i) {
+                cumulative += op.buckets[i].sum();
+                sb.append("spiffing_operation_seconds_bucket{op=\"").append(op.name).append("\",le=\"")
+                        .append((1L << i) / 1e6).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += op.buckets[BUCKETS - 1].sum();
+            sb.append("spiffing_operation_seconds_bucket{op=\"").append(op.name).append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append("spiffing_operation_seconds_sum{op=\"").append(op.name).append("\"} ").append(op.totalNanos() / 1e9).append('\n');
+            sb.append("spiffing_operation_seconds_count{op=\"").append(op.name).append("\"} ").append(cumulative).append('\n');
+        }
+        sb.append("# TYPE spiffing_operation_failures_total counter\n");
+        for (Operation op : operations) {
+            sb.append("spiffing_operation_failures_total{op=\"").append(op.name).append("\"} ").append(op.failures()).append('\n');
+        }
+        synchronized (gauges) {
+            for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                String name = "spiffing_" + e.getKey().replace('.', '_');
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                sb.append(name).append(' ').append(e.getValue().getAsLong()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String name : attributes) {
+            Long value = values.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        if ("prometheus".equals(actionName)) {
+            return prometheus();
+        }
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("prometheus", "Metrics in Prometheus text format", new MBeanParameterInfo[0],
+                        "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(getClass().getName(), "Spiffing labelling metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+    }
+}
@@ -0,0 +1,39 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.util.JiveGlobals;
+
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Serves the plugin metrics in Prometheus text format, when spiffing.metrics.prometheus is true.
+ *
+ * If the property is set when the plugin starts, the plugin excludes this servlet from the admin
+ * console's login check, so scrapers can reach it.
+ */
+public class MetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    static String PROP_PROMETHEUS = "spiffing.metrics.prometheus";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!JiveGlobals.getBooleanProperty(PROP_PROMETHEUS, false)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String text;
+        try {
+            text = (String) ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName(Metrics.OBJECT_NAME),
+                    "prometheus", new Object[0], new String[0]);
+        } catch (Exception e) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.getWriter().write(text);
+    }
+}
@@ -3,184 +3,861 @@ package com.surevine.spiffing.openfire;
 import com.surevine.spiffing.*;
 import com.surevine.spiffing.Clearance;
 import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.io.SAXReader;
+import org.jivesoftware.admin.AuthCheckFilter;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.container.Plugin;
 import org.jivesoftware.openfire.container.PluginManager;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.labelling.*;
-import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 import java.io.File;
-import java.io.StringReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by dwd on 20/03/17.
  */
-public class NewPlugin extends AbstractACDF implements Plugin {
+public class NewPlugin extends AbstractACDF implements Plugin, PropertyEventListener, UserEventListener {
     private static final Logger Log = LoggerFactory.getLogger(NewPlugin.class);
+    private final PluginEnvironment env;
     private PluginManager pluginManager;
     private File pluginPath;
-    private Site site;
+    private String metricsExclude;
+    private volatile Site site;
 
     static String PROP_POLICY_FILES = "spiffing.policies";
     static String PROP_DEFLABEL = "spiffing.label.default";
     static String PROP_LABEL_CATALOGUE = "spiffing.label.catalogue";
     static String PROP_USER_POL_PREFIX = "spiffing.policy.user.";
     static String PROP_PEER_POL_PREFIX = "spiffing.policy.peer.";
+    static String PROP_CLEARANCE_CACHE_SIZE = "spiffing.cache.clearance.size";
+    static String PROP_LABEL_CACHE_SIZE = "spiffing.cache.label.size";
+    static String PROP_LABEL_CACHE_CONCURRENCY = "spiffing.cache.label.concurrency";
+    static String PROP_DECISION_CACHE_SIZE = "spiffing.cache.decision.size";
+    static String PROP_EQUIV_TABLE_SIZE = "spiffing.cache.equivalence.size";
+    static String PROP_LABEL_KEY_CACHE_SIZE = "spiffing.cache.labelkey.size";
+    static String PROP_RELOAD_DELAY = "spiffing.policies.reload.delay";
+    static String PROP_WARMUP = "spiffing.warmup.enabled";
+    static String PROP_TRACK_HANDLES = "spiffing.handles.track";
+    static String PROP_LATTICE = "spiffing.lattice";
+    static String PROP_SHARED_DECISIONS = "spiffing.cluster.decisions.shared";
+    static String SHARED_DECISIONS_CACHE = "Spiffing ACDF Decisions";
+    static String DEFAULT_LABEL_KEY = "#default";
 
-    private LinkedHashMap<String,Label> label_cache;
-    private Label defaultLabel;
+    private LabelCache label_cache;
+    private ClearanceCache clearance_cache;
+    private DecisionCache decision_cache;
+    private EquivalenceTable equivalences;
+    private RewritePolicies rewritePolicies;
+    private LabelKeys label_keys;
+    private IQExecutor iqExecutor;
+    private volatile AuditLog audit;
+    private InvalidationBus invalidationBus;
+    private volatile boolean ready = false;
+    private volatile long warmUpMillis = -1;
+    private volatile List<String> policy_ids = Collections.emptyList();
+    private volatile Catalogue catalogue = Catalogue.EMPTY;
+    private volatile Label defaultLabel;
+    private volatile RenderedLabel defaultRendered;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    private volatile Map<String, Lattice> lattices = Collections.emptyMap();
+    private volatile Map<String, String> policy_hashes = Collections.emptyMap();
+    private volatile Map<String, RenderedLabel> restored = Collections.emptyMap();
+    private volatile int restoredEquivalences = 0;
+    private final Object snapshotLock = new Object();
+    private volatile boolean latticeEnabled = false;
+    private volatile boolean latticeVerify = false;
+    private final LongAdder latticeChecks = new LongAdder();
+    private final LongAdder latticeFallbacks = new LongAdder();
+    private final LongAdder latticeMismatches = new LongAdder();
+    private PolicyWatcher policyWatcher = null;
+
+    final Metrics metrics = new Metrics();
 
     private ClearanceHandler clrHandler = null;
     private CatalogueHandler catHandler0 = null;
     private CatalogueHandler catHandler2 = null;
 
     public NewPlugin() {
+        this(new OpenfireEnvironment());
+    }
+
+    NewPlugin(PluginEnvironment env) {
         super();
+        this.env = env;
+    }
+
+    PluginEnvironment getEnvironment() {
+        return env;
     }
 
     @Override
     public void initializePlugin(PluginManager manager, File pluginDirectory) {
         this.pluginManager = manager;
         this.pluginPath = pluginDirectory;
-        label_cache = new LinkedHashMap<String, Label>(16, (float) 0.75, true) {
-            protected boolean removeEldestEntry(Map.Entry<String, Label> eldest) {
-                if (size() > 100) {
-                    try {
-                        eldest.getValue().close();
-                    } catch (Exception e) {
-                        // Maybe leak?
-                    }
-                    return true;
-                }
-                return false;
+        if (start() > 0) {
+            XMPPServer.getInstance().getIQRouter().addHandler(this.catHandler2);
+            XMPPServer.getInstance().getIQRouter().addHandler(this.catHandler0);
+            XMPPServer.getInstance().getIQRouter().addHandler(this.clrHandler);
+            XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature("urn:xmpp:sec-label:catalog:0");
+            XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature("urn:xmpp:sec-label:catalog:2");
+            XMPPServer.getInstance().setAccessControlDecisionFunction(this);
+            PropertyEventDispatcher.addListener(this);
+            UserEventDispatcher.addListener(this);
+            watchPolicies();
+            registerMetrics();
+            if (env.getBooleanProperty(MetricsServlet.PROP_PROMETHEUS, false)) {
+                // Scrapers can't log in to the admin console.
+                metricsExclude = pluginDirectory.getName() + "/metrics";
+                AuthCheckFilter.addExclude(metricsExclude);
             }
-        };
+            scheduleWarmUp();
+        }
+    }
+
+    /**
+     * Load the policies, catalogue and default label and create the IQ handlers, without registering
+     * anything with the server. Returns the number of policies loaded.
+     */
+    synchronized int start() {
+        Handles.setTracking(env.getBooleanProperty(PROP_TRACK_HANDLES, false));
+        label_cache = new LabelCache(env.getIntProperty(PROP_LABEL_CACHE_SIZE, 1000),
+                env.getIntProperty(PROP_LABEL_CACHE_CONCURRENCY, 16));
+        clearance_cache = new ClearanceCache(this, env.getIntProperty(PROP_CLEARANCE_CACHE_SIZE, 100));
+        Map<String, String> shared = null;
+        if (env.getBooleanProperty(PROP_SHARED_DECISIONS, false)) {
+            Cache<String, String> cache = CacheFactory.createCache(SHARED_DECISIONS_CACHE);
+            shared = cache;
+        }
+        decision_cache = new DecisionCache(env.getIntProperty(PROP_DECISION_CACHE_SIZE, 10000), shared);
+        equivalences = new EquivalenceTable(env.getIntProperty(PROP_EQUIV_TABLE_SIZE, 10000));
+        rewritePolicies = new RewritePolicies(env);
+        label_keys = new LabelKeys(env.getIntProperty(PROP_LABEL_KEY_CACHE_SIZE, 10000));
+        invalidationBus = new InvalidationBus(this::invalidated);
+        if (env.getBooleanProperty(AuditLog.PROP_AUDIT, false)) {
+            audit = new AuditLog(env);
+        }
 
         int policiesLoaded = 0;
         try {
             Log.info("Spiffing labelling plugin loading...");
-            this.site = new Site();
-            for (String policyFile : StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_POLICY_FILES))) {
-                Log.info("Policy file: '" + policyFile + "'");
-                Spif s = site.load(policyFile);
-                Log.info("Loaded SPIF " + s.name());
-                ++policiesLoaded;
-            }
+            List<String> ids = new ArrayList<>();
+            Map<String, Lattice> compiled = new HashMap<>();
+            Map<String, String> hashes = new HashMap<>();
+            readLatticeMode();
+            this.site = Handles.opened(new Site());
+            loadPolicies(ids, compiled, hashes);
+            this.policy_ids = ids;
+            this.lattices = compiled;
+            this.policy_hashes = hashes;
+            decision_cache.setPolicies(ids, hashes, env.getProperty(PROP_DEFLABEL));
+            policiesLoaded = ids.size();
             if (policiesLoaded > 0) {
-                for (String lablob : StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_LABEL_CATALOGUE))) {
-                    Label l = getLabel(lablob);
-                    Log.info("Loaded label catalogue entry " + l.displayMarking());
-                }
-                String deflablob = JiveGlobals.getProperty(PROP_DEFLABEL);
-                if (deflablob != null) {
-                    defaultLabel = new Label(deflablob);
-                    Log.info("Default label is " + defaultLabel.displayMarking());
-                }
+                restoreSnapshot();
+                loadCatalogue(false);
+                loadDefaultLabel();
             }
         } catch (SIOException e) {
             Log.warn("Couldn't setup Spiffing: ", e);
         }
         if (policiesLoaded > 0) {
+            this.iqExecutor = new IQExecutor(env);
             this.catHandler2 = new CatalogueHandler(this, true);
-            XMPPServer.getInstance().getIQRouter().addHandler(this.catHandler2);
             this.catHandler0 = new CatalogueHandler(this, false);
-            XMPPServer.getInstance().getIQRouter().addHandler(this.catHandler0);
             this.clrHandler = new ClearanceHandler(this);
-            XMPPServer.getInstance().getIQRouter().addHandler(this.clrHandler);
-            XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature("urn:xmpp:sec-label:catalog:0");
-            XMPPServer.getInstance().getIQDiscoInfoHandler().addServerFeature("urn:xmpp:sec-label:catalog:2");
-            XMPPServer.getInstance().setAccessControlDecisionFunction(this);
+        }
+        return policiesLoaded;
+    }
+
+    CatalogueHandler getCatalogueHandler(boolean ns2) {
+        return ns2 ? catHandler2 : catHandler0;
+    }
+
+    ClearanceHandler getClearanceHandler() {
+        return clrHandler;
+    }
+
+    IQExecutor getIQExecutor() {
+        return iqExecutor;
+    }
+
+    private void registerMetrics() {
+        final LabelCache labels = label_cache;
+        final ClearanceCache clearances = clearance_cache;
+        final DecisionCache decisions = decision_cache;
+        final EquivalenceTable equivs = equivalences;
+        final LabelKeys keys = label_keys;
+        metrics.gauge("label.cache.size", () -> labels.size());
+        metrics.gauge("label.cache.evictions", () -> labels.evictions());
+        metrics.gauge("label.keys.size", () -> keys.size());
+        metrics.gauge("clearance.cache.size", () -> clearances.size());
+        metrics.gauge("decision.cache.size", () -> decisions.size());
+        metrics.gauge("decision.cache.hits", () -> decisions.hits());
+        metrics.gauge("decision.cache.misses", () -> decisions.misses());
+        metrics.gauge("equivalence.table.size", () -> equivs.size());
+        metrics.gauge("catalogue.size", () -> catalogue.size());
+        metrics.gauge("policy.generation", () -> generation.get());
+        metrics.gauge("handles.label.live", () -> Handles.live(Handles.Kind.LABEL));
+        metrics.gauge("handles.clearance.live", () -> Handles.live(Handles.Kind.CLEARANCE));
+        metrics.gauge("handles.site.live", () -> Handles.live(Handles.Kind.SITE));
+        metrics.gauge("lattice.checks", () -> latticeChecks.sum());
+        metrics.gauge("lattice.fallbacks", () -> latticeFallbacks.sum());
+        metrics.gauge("lattice.mismatches", () -> latticeMismatches.sum());
+        metrics.gauge("audit.recorded", () -> audit == null ? 0 : audit.recorded());
+        metrics.gauge("audit.dropped", () -> audit == null ? 0 : audit.dropped());
+        metrics.gauge("snapshot.rendered", () -> restored.size());
+        metrics.gauge("snapshot.equivalences", () -> restoredEquivalences);
+        metrics.gauge("warmup.ready", () -> ready ? 1 : 0);
+        metrics.gauge("warmup.millis", () -> warmUpMillis);
+        metrics.register();
+    }
+
+    /**
+     * Load the configured SPIFs into the Site. The binding's Site is process-wide (native labels find
+     * their policies through Site.site()), so reloading loads into the same one: a SPIF replaces any
+     * loaded with the same policy id, while Labels already parsed keep the SPIF they were parsed with.
+     */
+    private void loadPolicies(List<String> policy_ids, Map<String, Lattice> lattices, Map<String, String> hashes) throws SIOException {
+        for (String policyFile : StringUtils.stringToCollection(env.getProperty(PROP_POLICY_FILES))) {
+            Log.info("Policy file: '" + policyFile + "'");
+            Spif s = site.load(policyFile);
+            Log.info("Loaded SPIF " + s.name());
+            policy_ids.add(s.policy_id());
+            if (env.getProperty(Snapshot.PROP_SNAPSHOT_FILE) != null
+                    || env.getBooleanProperty(PROP_SHARED_DECISIONS, false)) {
+                try {
+                    hashes.put(s.policy_id(), Snapshot.hash(Paths.get(policyFile)));
+                } catch (IOException e) {
+                    Log.warn("Couldn't hash " + policyFile + "; nothing from it will be restored or shared: ", e);
+                }
+            }
+            if (latticeEnabled) {
+                Lattice lattice = compileLattice(policyFile);
+                if (lattice != null && lattice.policy_id.equals(s.policy_id())) {
+                    lattices.put(s.policy_id(), lattice);
+                } else {
+                    Log.info("SPIF " + s.name() + " can't be compiled; its dominance checks stay native");
+                }
+            }
+        }
+    }
+
+    private void loadDefaultLabel() throws SIOException {
+        Label old = defaultLabel;
+        String deflablob = env.getProperty(PROP_DEFLABEL);
+        if (deflablob != null) {
+            Label l = Handles.opened(new Label(deflablob));
+            Log.info("Default label is " + l.displayMarking());
+            defaultLabel = l;
+        } else {
+            defaultLabel = null;
+        }
+        defaultRendered = null;
+        if (old != null) {
+            label_cache.retire(old);
+        }
+    }
+
+    private synchronized void watchPolicies() {
+        if (policyWatcher != null) {
+            policyWatcher.stop();
+            policyWatcher = null;
+        }
+        try {
+            policyWatcher = new PolicyWatcher(this, StringUtils.stringToCollection(env.getProperty(PROP_POLICY_FILES)));
+            policyWatcher.start();
+        } catch (IOException e) {
+            Log.warn("Couldn't watch policy files for changes: ", e);
+        }
+    }
+
+    /**
+     * The policy files changed on this node: reload them here, and have the rest of the cluster do the same.
+     */
+    void policyFilesChanged() {
+        schedulePolicyReload();
+        // Decisions made against the old files are no use to anyone; only this node needs to say so.
+        decision_cache.invalidateShared();
+        invalidationBus.publish(Invalidation.policies());
+    }
+
+    /**
+     * Reload the policies shortly, coalescing bursts of changes into a single reload.
+     */
+    void schedulePolicyReload() {
+        if (reloadPending.compareAndSet(false, true)) {
+            TaskEngine.getInstance().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    reloadPending.set(false);
+                    reloadPolicies();
+                }
+            }, env.getLongProperty(PROP_RELOAD_DELAY, 2000));
+        }
+    }
+
+    /**
+     * Load a new generation of policies into the Site and swap it in. Everything parsed against the old
+     * policies is dropped; any of its Labels still in use are freed once in-flight checks finish.
+     */
+    synchronized void reloadPolicies() {
+        if (label_cache == null) {
+            // Destroyed.
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        Map<String, Lattice> compiled = new HashMap<>();
+        Map<String, String> hashes = new HashMap<>();
+        try {
+            loadPolicies(ids, compiled, hashes);
+        } catch (SIOException e) {
+            if (ids.isEmpty()) {
+                Log.warn("Couldn't reload policies, keeping the current ones: ", e);
+                return;
+            }
+            // The Site is shared, so SPIFs loaded before the failure have already replaced their old
+            // versions and can't be rolled back. Keep the old versions of the rest, and drop everything
+            // parsed against either.
+            Log.warn("Couldn't reload every policy, keeping the current versions of the rest: ", e);
+            keepUnreloaded(ids, compiled, hashes);
+        }
+        if (ids.isEmpty()) {
+            Log.warn("No policies configured, keeping the current ones");
+            return;
+        }
+        policy_ids = ids;
+        lattices = compiled;
+        policy_hashes = hashes;
+        long gen = generation.incrementAndGet();
+        clearance_cache.invalidateAll();
+        decision_cache.setPolicies(ids, hashes, env.getProperty(PROP_DEFLABEL));
+        decision_cache.invalidateAll();
+        equivalences.invalidateAll();
+        ClearanceHandler c = clrHandler;
+        if (c != null) {
+            c.invalidatePolicies();
+        }
+        restoreSnapshot();
+        try {
+            loadDefaultLabel();
+        } catch (SIOException e) {
+            Log.warn("Couldn't reload default label: ", e);
+        }
+        loadCatalogue(true);
+        Log.info("Loaded policy generation " + gen + " with " + ids.size() + " policies");
+        scheduleWarmUp();
+    }
+
+    /**
+     * Add the current policies that a failed reload didn't reach, with their lattices and hashes, to
+     * those it did.
+     */
+    private void keepUnreloaded(List<String> ids, Map<String, Lattice> compiled, Map<String, String> hashes) {
+        Map<String, Lattice> oldLattices = lattices;
+        Map<String, String> oldHashes = policy_hashes;
+        for (String policy_id : policy_ids) {
+            if (ids.contains(policy_id)) {
+                continue;
+            }
+            ids.add(policy_id);
+            Lattice lattice = oldLattices.get(policy_id);
+            if (lattice != null) {
+                compiled.put(policy_id, lattice);
+            }
+            String hash = oldHashes.get(policy_id);
+            if (hash != null) {
+                hashes.put(policy_id, hash);
+            }
+        }
+    }
+
+    /**
+     * True once the caches have been warmed for the current policies.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * How long the last completed warm-up took, or -1 if none has completed.
+     */
+    public long getWarmUpMillis() {
+        return warmUpMillis;
+    }
+
+    private void scheduleWarmUp() {
+        ready = false;
+        if (!env.getBooleanProperty(PROP_WARMUP, true)) {
+            return;
+        }
+        TaskEngine.getInstance().submit(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        });
+    }
+
+    /**
+     * Fill the caches the first stanzas after a (re)start would otherwise pay for: rendered catalogue
+     * and default labels, the clearances of users and peers with configured rewrite policies, and the
+     * equivalences and decisions for each of those against the catalogue. Decisions other nodes have
+     * shared are fetched rather than made again. Abandoned if the policies are reloaded meanwhile.
+     */
+    void warmUp() {
+        long start = System.currentTimeMillis();
+        long gen = generation.get();
+        LabelCache cache = label_cache;
+        if (cache == null) {
+            return;
+        }
+        int rendered = 0;
+        try (LabelCache.Guard guard = cache.enter()) {
+            Catalogue cat = catalogue;
+            Label def = defaultLabel;
+            if (def != null) {
+                getRendered(DEFAULT_LABEL_KEY, def);
+                ++rendered;
+            }
+            for (Catalogue.Item item : cat.items()) {
+                if (generation.get() != gen) {
+                    return;
+                }
+                getRendered(item.key, item.label);
+                ++rendered;
+            }
+        } catch (SIOException e) {
+            Log.warn("Warm-up couldn't render a label: ", e);
+        }
+        List<JID> entities = new ArrayList<>();
+        for (String node : rewritePolicies.users()) {
+            entities.add(new JID(node, env.getDomain(), null));
+        }
+        for (String domain : rewritePolicies.peers()) {
+            entities.add(new JID(domain));
+        }
+        Set<String> groups = new HashSet<>();
+        int limit = decision_cache.capacity() * 9 / 10;
+        for (JID entity : entities) {
+            if (generation.get() != gen) {
+                return;
+            }
+            try (LabelCache.Guard guard = cache.enter();
+                 ClearanceSet clearances = getSpiffingClearance(entity)) {
+                Set<String> pols = getRewritePolicies(entity, clearances);
+                if (!groups.add(clearances.key() + '\n' + String.join(",", new TreeSet<>(pols)))) {
+                    continue;
+                }
+                for (Catalogue.Item item : catalogue.items()) {
+                    if (decision_cache.size() >= limit) {
+                        break;
+                    }
+                    try {
+                        // Another node may already have made this decision.
+                        if (decision_cache.fetch(clearances.key(), item.key, pols) == null) {
+                            decision(clearances, item.key, item.label, pols);
+                        }
+                    } catch (SIOException e) {
+                        // Just not warmed.
+                    }
+                }
+            }
+        }
+        if (generation.get() != gen) {
+            return;
+        }
+        warmUpMillis = System.currentTimeMillis() - start;
+        ready = true;
+        Log.info("Spiffing warm-up took " + warmUpMillis + "ms: " + rendered + " labels rendered, "
+                + entities.size() + " clearances, " + decision_cache.size() + " decisions");
+        saveSnapshot();
+    }
+
+    /**
+     * Load the snapshot named by spiffing.snapshot.file, keeping the rendered forms and equivalences
+     * whose policies are unchanged since it was written. Call with the equivalence table empty.
+     */
+    private void restoreSnapshot() {
+        restored = Collections.emptyMap();
+        restoredEquivalences = 0;
+        String file = env.getProperty(Snapshot.PROP_SNAPSHOT_FILE);
+        if (file == null) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Snapshot snapshot = Snapshot.read(Paths.get(file));
+        if (snapshot == null) {
+            return;
+        }
+        Map<String, String> hashes = policy_hashes;
+        Map<String, RenderedLabel> forms = new HashMap<>();
+        for (Snapshot.Rendered r : snapshot.rendered) {
+            if (snapshot.current(r.policy_id, hashes)) {
+                try {
+                    forms.put(r.key, RenderedLabel.restore(r));
+                } catch (DocumentException e) {
+                    Log.debug("Snapshot has an unparseable label: ", e);
+                }
+            }
+        }
+        int equivs = 0;
+        for (Snapshot.Equivalence e : snapshot.equivalences) {
+            if (snapshot.current(e.source_policy, hashes) && snapshot.current(e.target_policy, hashes)) {
+                if (e.target == null) {
+                    equivalences.putMissing(e.source, e.target_policy);
+                } else {
+                    equivalences.put(e.source, e.target_policy, e.target);
+                }
+                ++equivs;
+            }
+        }
+        restored = forms;
+        restoredEquivalences = equivs;
+        Log.info("Restored " + forms.size() + " rendered labels and " + equivs + " equivalences from " + file
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Write the rendered catalogue labels and the equivalence table to spiffing.snapshot.file, if set.
+     */
+    void saveSnapshot() {
+        String file = env.getProperty(Snapshot.PROP_SNAPSHOT_FILE);
+        LabelCache cache = label_cache;
+        if (file == null || cache == null) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            Map<String, String> hashes = policy_hashes;
+            List<Snapshot.Rendered> rendered = new ArrayList<>();
+            List<Snapshot.Equivalence> equivs = new ArrayList<>();
+            try (LabelCache.Guard guard = cache.enter()) {
+                Catalogue cat = catalogue;
+                for (Catalogue.Item item : cat.items()) {
+                    rendered.add(getRendered(item.key, item.label).save(item.key, item.policy_id));
+                }
+                Set<String> seen = new HashSet<>();
+                equivalences.forEach((source, policy_id, equivalent) -> {
+                    String source_policy = sourcePolicy(cat, source);
+                    if (source_policy == null) {
+                        return;
+                    }
+                    boolean missing = equivalent == EquivalenceTable.NO_MAPPING;
+                    equivs.add(new Snapshot.Equivalence(source, source_policy, policy_id, missing ? null : equivalent));
+                    LabelCache.Entry e = missing ? null : label_cache.peek(equivalent);
+                    if (e != null && e.rendered != null && seen.add(equivalent)) {
+                        rendered.add(e.rendered.save(equivalent, policy_id));
+                    }
+                });
+            } catch (SIOException e) {
+                Log.warn("Couldn't snapshot the catalogue: ", e);
+                return;
+            }
+            try {
+                new Snapshot(hashes, rendered, equivs).write(Paths.get(file));
+                Log.info("Wrote snapshot of " + rendered.size() + " rendered labels and " + equivs.size()
+                        + " equivalences to " + file);
+            } catch (IOException e) {
+                Log.warn("Couldn't write snapshot " + file + ": ", e);
+            }
+        }
+    }
+
+    private String sourcePolicy(Catalogue cat, String key) {
+        Catalogue.Item item = cat.forKey(key);
+        if (item != null) {
+            return item.policy_id;
+        }
+        LabelCache.Entry e = label_cache.peek(key);
+        if (e == null) {
+            return null;
+        }
+        try {
+            return e.label.policy().policy_id();
+        } catch (SIOException ex) {
+            return null;
         }
     }
 
+    /**
+     * Counts policy reloads since the plugin started.
+     */
+    public long getPolicyGeneration() {
+        return generation.get();
+    }
+
     private Label getLabel(String lablob) throws SIOException {
         Label l = label_cache.get(lablob);
         if (l == null) {
-            l = new Label(lablob);
-            if (!l.valid()) {
-                throw new SIOException("Label not valid");
-            }
-            label_cache.put(lablob, l);
+            l = label_cache.intern(lablob, parseLabel(lablob));
         }
         return l;
     }
 
-    private Label getLabel(Element labelElement) throws SIOException {
-        Label label = null;
-        // What do we have?
-        if (labelElement.getNamespaceURI().equals("urn:xmpp:sec-label:ess:0")) {
-            // ESS Label, base64 encoded.
-            String labelstr = labelElement.getStringValue();
-            label = getLabel(labelstr);
-            Log.debug("Got label of " + label.displayMarking());
-        } else if (labelElement.getNamespaceURI().equals("urn:nato:stanag:4774:confidentialitymetadatalabel:1:0")) {
-            String labelstr = labelElement.asXML();
-            label = getLabel(labelstr);
-            Log.debug("Got a NATO label " + label.displayMarking());
+    /**
+     * (Re)build the label catalogue from its property. Catalogue labels are pinned in the label cache,
+     * and labels dropped from the catalogue are unpinned.
+     *
+     * After a policy reload every label is parsed again. The new catalogue is published before the
+     * label cache is cleared, so no thread can find an old catalogue label once it has been retired.
+     */
+    private synchronized void loadCatalogue(boolean reparse) {
+        Catalogue old = catalogue;
+        List<Catalogue.Item> items = new ArrayList<>();
+        Map<String, Label> parsed = new HashMap<>();
+        try (LabelCache.Guard guard = label_cache.enter()) {
+            for (String lablob : StringUtils.stringToCollection(env.getProperty(PROP_LABEL_CATALOGUE))) {
+                try {
+                    Label l = parsed.get(lablob);
+                    if (l == null && !reparse && old.containsKey(lablob)) {
+                        l = label_cache.get(lablob);
+                    }
+                    if (l == null) {
+                        l = parseLabel(lablob);
+                        if (!reparse) {
+                            l = label_cache.pin(lablob, l);
+                        }
+                        parsed.put(lablob, l);
+                    }
+                    RenderedLabel saved = restored.get(lablob);
+                    String dm = saved != null ? saved.displayMarking() : l.displayMarking();
+                    items.add(new Catalogue.Item(items.size(), lablob, l, l.policy().policy_id(), dm));
+                    Log.info("Loaded label catalogue entry " + dm);
+                } catch (SIOException e) {
+                    Log.warn("Bad label catalogue entry: ", e);
+                }
+            }
+        }
+        catalogue = new Catalogue(items);
+        if (reparse) {
+            label_cache.clear();
+            for (Map.Entry<String, Label> e : parsed.entrySet()) {
+                label_cache.pin(e.getKey(), e.getValue());
+            }
         } else {
-            throw new SIOException("No idea what " + labelElement.getNamespaceURI() + " means.");
+            for (Catalogue.Item item : old.items()) {
+                if (!catalogue.containsKey(item.key)) {
+                    label_cache.unpin(item.key);
+                }
+            }
         }
-        return label;
+        buildEquivalences();
+        invalidateCatalogues();
+    }
+
+    /**
+     * Precompute translations of every catalogue label into every other loaded policy.
+     */
+    private void buildEquivalences() {
+        int mapped = 0;
+        try (LabelCache.Guard guard = label_cache.enter()) {
+            for (Catalogue.Item item : catalogue.items()) {
+                for (String policy_id : policy_ids) {
+                    if (!policy_id.equals(item.policy_id) && getEquivalent(item.key, item.label, policy_id) != null) {
+                        ++mapped;
+                    }
+                }
+            }
+        } catch (SIOException e) {
+            Log.warn("Couldn't precompute label equivalences: ", e);
+        }
+        Log.info("Precomputed " + mapped + " catalogue label equivalences");
+    }
+
+    /**
+     * The key of a label's equivalent in the given policy, if getEquivalent() has recorded one, or null.
+     */
+    String getEquivalentKey(String key, String policy_id) {
+        String equivKey = equivalences.get(key, policy_id);
+        return equivKey == EquivalenceTable.NO_MAPPING ? null : equivKey;
     }
 
-    private Label getLabel(SecurityLabel securityLabel) throws SIOException {
-        return securityLabel == null ? getDefaultLabel() : getLabel(securityLabel.getLabel());
+    /**
+     * Translate a label into the given policy, consulting the equivalence table first.
+     * Returns null if there is no mapping. The key may be null if the label's cache key is unknown.
+     */
+    Label getEquivalent(String key, Label source, String policy_id) throws SIOException {
+        String equivKey = key == null ? null : equivalences.get(key, policy_id);
+        if (equivKey == EquivalenceTable.NO_MAPPING) {
+            return null;
+        }
+        if (equivKey != null) {
+            return getLabel(equivKey);
+        }
+        Label equiv;
+        long start = System.nanoTime();
+        try {
+            equiv = Handles.opened(source.encrypt(site.spif(policy_id)));
+            metrics.encrypt.record(start, false);
+        } catch (SIOException e) {
+            metrics.encrypt.record(start, true);
+            // Missing encrypt.
+            if (key != null) {
+                equivalences.putMissing(key, policy_id);
+            }
+            return null;
+        }
+        try {
+            equivKey = equiv.toNATOXML();
+        } catch (SIOException e) {
+            Handles.release(equiv);
+            throw e;
+        }
+        equiv = label_cache.intern(equivKey, equiv);
+        if (key != null) {
+            equivalences.put(key, policy_id, equivKey);
+        }
+        return equiv;
+    }
+
+    private static Label parseLabel(String lablob) throws SIOException {
+        Label l = Handles.opened(new Label(lablob));
+        if (!l.valid()) {
+            Handles.release(l);
+            throw new SIOException("Label not valid");
+        }
+        return l;
+    }
+
+    /**
+     * Marks the calling thread as using cached Labels; evicted Labels are not freed until it closes the Guard.
+     */
+    LabelCache.Guard enter() {
+        return label_cache.enter();
+    }
+
+    private String getLabelKey(Element labelElement) throws SIOException {
+        return label_keys.key(labelElement);
+    }
+
+    private String getLabelKey(SecurityLabel securityLabel) throws SIOException {
+        return securityLabel == null ? DEFAULT_LABEL_KEY : getLabelKey(securityLabel.getLabel());
+    }
+
+    private Label getLabelByKey(String key) throws SIOException {
+        if (key.equals(DEFAULT_LABEL_KEY)) {
+            return getDefaultLabel();
+        }
+        Label label = getLabel(key);
+        if (Log.isDebugEnabled()) {
+            Log.debug("Got label of " + label.displayMarking());
+        }
+        return label;
     }
 
     @Override
-    public void destroyPlugin() {
+    public synchronized void destroyPlugin() {
+        if (policyWatcher != null) {
+            policyWatcher.stop();
+            policyWatcher = null;
+        }
+        metrics.unregister();
+        if (metricsExclude != null) {
+            AuthCheckFilter.removeExclude(metricsExclude);
+            metricsExclude = null;
+        }
+        PropertyEventDispatcher.removeListener(this);
+        UserEventDispatcher.removeListener(this);
         XMPPServer.getInstance().setAccessControlDecisionFunction(null);
         if (this.catHandler2 != null) {
             XMPPServer.getInstance().getIQRouter().removeHandler(this.catHandler2);
-            this.catHandler2 = null;
         }
         if (this.catHandler0 != null) {
             XMPPServer.getInstance().getIQRouter().removeHandler(this.catHandler0);
-            this.catHandler0 = null;
         }
         if (this.clrHandler != null) {
             XMPPServer.getInstance().getIQRouter().removeHandler(this.clrHandler);
-            this.clrHandler = null;
         }
         XMPPServer.getInstance().getIQDiscoInfoHandler().removeServerFeature("urn:xmpp:sec-label:catalog:0");
         XMPPServer.getInstance().getIQDiscoInfoHandler().removeServerFeature("urn:xmpp:sec-label:catalog:2");
+        stop();
+    }
+
+    /**
+     * Free everything start() created. The handlers must no longer be reachable.
+     */
+    synchronized void stop() {
+        this.catHandler2 = null;
+        this.catHandler0 = null;
+        this.clrHandler = null;
+        if (audit != null) {
+            audit.close();
+            audit = null;
+        }
+        if (iqExecutor != null) {
+            saveSnapshot();
+        }
+        if (invalidationBus != null) {
+            invalidationBus.close();
+            invalidationBus = null;
+        }
+        if (iqExecutor != null) {
+            iqExecutor.shutdown();
+            iqExecutor = null;
+        }
         if (label_cache != null) {
-            for (String str : label_cache.keySet()) {
-                try {
-                    Label l = label_cache.remove(str);
-                    l.close();
-                } catch (Exception ex) {
-                    Log.warn("While freeing Label: ", ex);
-                }
-            }
+            label_cache.close();
             label_cache = null;
         }
+        if (clearance_cache != null) {
+            clearance_cache.invalidateAll();
+            clearance_cache = null;
+        }
+        if (decision_cache != null) {
+            decision_cache.close();
+        }
         if (defaultLabel != null) {
-            defaultLabel.dispose();
+            Handles.release(defaultLabel);
             defaultLabel = null;
+            defaultRendered = null;
         }
         if (site != null) {
-            try {
-                site.dispose();
-                site = null;
-            } catch (SIOException e) {
-                Log.warn("Spiffing failed to shutdown properly", e);
-            }
+            Handles.release(site);
+            site = null;
         }
+        Handles.report();
     }
 
     @Override
     public String asESS(SecurityLabel label) {
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
-            Label l = getLabel(label);
-            return l.toESSBase64();
+            String ess = essOf(label);
+            failed = false;
+            return ess;
+        } finally {
+            metrics.asESS.record(start, failed);
+        }
+    }
+
+    private String essOf(SecurityLabel label) {
+        try (LabelCache.Guard guard = label_cache.enter()) {
+            String key = getLabelKey(label);
+            Label l = getLabelByKey(key);
+            String ess = getRendered(key, l).ess();
+            return ess != null ? ess : l.toESSBase64();
         } catch (SIOException e) {
             Log.warn("Exception during input or rewrite: ", e);
             throw new SecurityLabelException("ACDF Failure: " + e.getMessage());
@@ -189,23 +866,165 @@ public class NewPlugin extends AbstractACDF implements Plugin {
 
     @Override
     public SecurityLabel check(String clearanceString, SecurityLabel label, JID rewrite) {
-        LinkedHashMap<String, Clearance> clearances = getSpiffingClearance(clearanceString);
+        return check(clearanceString, label, rewrite, null);
+    }
+
+    /**
+     * As check(String, SecurityLabel, JID), naming the stanza's sender for the audit log.
+     */
+    public SecurityLabel check(String clearanceString, SecurityLabel label, JID rewrite, JID sender) {
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
-            Label l = getLabel(label);
-            Label result = check(clearances, l, rewrite);
-            if (result != null) {
-                return rewrite(result);
+            SecurityLabel result = checkLabel(clearanceString, label, rewrite, sender);
+            failed = false;
+            return result;
+        } finally {
+            metrics.check.record(start, failed);
+        }
+    }
+
+    private SecurityLabel checkLabel(String clearanceString, SecurityLabel label, JID rewrite, JID sender) {
+        try (LabelCache.Guard guard = label_cache.enter();
+             ClearanceSet clearances = getSpiffingClearance(clearanceString)) {
+            String key = getLabelKey(label);
+            Label l = getLabelByKey(key);
+            Set<String> pols = rewrite == null ? null : getRewritePolicies(rewrite, clearances);
+            DecisionCache.Decision decision = decision(clearances, key, l, pols);
+            audit("check", sender, null, rewrite, clearances, key, l, decision);
+            if (!decision.allowed()) {
+                throw new SecurityLabelException(decision.reason);
             }
+            return rewritten(decision, key, l);
         } catch(SIOException e) {
             Log.warn("Exception during input or rewrite: ", e);
             throw new SecurityLabelException("ACDF Failure: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check one label for many recipients, as for MUC and PubSub fan-out. Each recipient is checked
+     * against its own clearance, with the label rewritten into its policies. The label is resolved
+     * once, and recipients sharing a clearance and rewrite policies share a decision.
+     */
+    public Map<JID, LabelDecision> check(SecurityLabel label, Collection<JID> recipients) {
+        return check(label, null, recipients);
+    }
+
+    /**
+     * As check(SecurityLabel, Collection), naming the stanza's sender for the audit log.
+     */
+    public Map<JID, LabelDecision> check(SecurityLabel label, JID sender, Collection<JID> recipients) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Map<JID, LabelDecision> result = checkAll(label, sender, recipients);
+            failed = false;
+            return result;
         } finally {
-            dispose(clearances);
+            metrics.checkBatch.record(start, failed);
         }
-        return null;
     }
 
-    public Label check(LinkedHashMap<String,Clearance> clearances, Label l, JID rewrite) {
+    private Map<JID, LabelDecision> checkAll(SecurityLabel label, JID sender, Collection<JID> recipients) {
+        Map<JID, LabelDecision> results = new LinkedHashMap<>();
+        try (LabelCache.Guard guard = label_cache.enter()) {
+            String key;
+            Label l;
+            try {
+                key = getLabelKey(label);
+                l = getLabelByKey(key);
+            } catch (SIOException e) {
+                Log.warn("Malformed input label: ", e);
+                LabelDecision denied = LabelDecision.deny("Malformed input label: " + e.getMessage());
+                for (JID recipient : recipients) {
+                    results.put(recipient, denied);
+                }
+                return results;
+            }
+            Map<String, DecisionCache.Decision> groups = new HashMap<>();
+            for (JID recipient : recipients) {
+                try (ClearanceSet clearances = getSpiffingClearance(recipient)) {
+                    Set<String> pols = getRewritePolicies(recipient, clearances);
+                    String group = clearances.key() + '\n' + String.join(",", new TreeSet<>(pols));
+                    DecisionCache.Decision decision = groups.get(group);
+                    if (decision == null) {
+                        decision = decision(clearances, key, l, pols);
+                        groups.put(group, decision);
+                    }
+                    audit("check_batch", sender, recipient, recipient, clearances, key, l, decision);
+                    if (decision.allowed()) {
+                        results.put(recipient, LabelDecision.allow(rewritten(decision, key, l)));
+                    } else {
+                        results.put(recipient, LabelDecision.deny(decision.reason));
+                    }
+                } catch (SIOException e) {
+                    Log.warn("Exception during input or rewrite: ", e);
+                    results.put(recipient, LabelDecision.deny("ACDF Failure: " + e.getMessage()));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Pass a decision to the audit log, if auditing is on.
+     */
+    private void audit(String op, JID sender, JID subject, JID rewrite, ClearanceSet clearances, String key,
+                       Label l, DecisionCache.Decision decision) throws SIOException {
+        AuditLog log = audit;
+        if (log != null) {
+            log.record(op, sender, subject, rewrite, clearances.key(), key, l.policy().policy_id(), decision.allowed(), decision.result,
+                    decision.reason);
+        }
+    }
+
+    private DecisionCache.Decision decision(ClearanceSet clearances, String key, Label l, Set<String> pols) throws SIOException {
+        DecisionCache.Decision decision = decision_cache.get(clearances.key(), key, pols);
+        if (decision == null) {
+            decision = decide(clearances, key, l, pols);
+            decision_cache.put(clearances.key(), key, pols, decision);
+        }
+        return decision;
+    }
+
+    /**
+     * The label to deliver for an allowed decision, or null to leave it unchanged.
+     */
+    private SecurityLabel rewritten(DecisionCache.Decision decision, String key, Label l) throws SIOException {
+        if (decision.unchanged) {
+            return rewrite(key, l);
+        } else if (decision.result == null) {
+            return null;
+        }
+        return rewrite(decision.result, getLabel(decision.result));
+    }
+
+    private DecisionCache.Decision decide(ClearanceSet clearances, String key, Label l, Set<String> pols) throws SIOException {
+        Label result;
+        try {
+            result = check(clearances, key, l, pols);
+        } catch (SecurityLabelException e) {
+            return DecisionCache.Decision.deny(e.getMessage());
+        }
+        if (result == null) {
+            return DecisionCache.Decision.allow(null, false);
+        }
+        if (result == l) {
+            return DecisionCache.Decision.allow(key, true);
+        }
+        return DecisionCache.Decision.allow(result.toNATOXML(), false);
+    }
+
+    public Label check(ClearanceSet clearances, Label l, JID rewrite) {
+        return check(clearances, null, l, rewrite);
+    }
+
+    Label check(ClearanceSet clearances, String key, Label l, JID rewrite) {
+        return check(clearances, key, l, rewrite == null ? null : getRewritePolicies(rewrite, clearances));
+    }
+
+    private Label check(ClearanceSet clearances, String key, Label l, Set<String> pols) {
         try {
             if (!l.valid()) {
                 throw new SIOException("Label not valid");
@@ -216,28 +1035,25 @@ public class NewPlugin extends AbstractACDF implements Plugin {
                 // Find best policy match, if any:
                 if (clearances.containsKey(l.policy().policy_id())) {
                     // Have a matching clearance, just use that.
-                    if (!clearances.get(l.policy().policy_id()).dominates(l)) {
+                    if (!dominates(clearances, l.policy().policy_id(), key, l)) {
                         throw new SecurityLabelException("ACDF failure (policy match) [" + clearances.get(l.policy().policy_id()).displayMarking() + "] << [" + l.displayMarking() + "]");
                     }
                     equiv = l;
                 } else {
                     for (Map.Entry<String, Clearance> entry : clearances.entrySet()) {
                         try {
-                            Spif clpolicy = entry.getValue().policy();
+                            Label mapped = getEquivalent(key, l, entry.getKey());
+                            if (mapped == null) {
+                                // Ignore; missing encrypt.
+                                continue;
+                            }
+                            equiv = mapped;
                             try {
-                                equiv = l.encrypt(clpolicy);
-                                String s = equiv.toNATOXML();
-                                if (!label_cache.containsKey(s)) {
-                                    label_cache.put(equiv.toNATOXML(), equiv);
-                                } else {
-                                    equiv.dispose();
-                                    equiv = label_cache.get(s);
-                                }
-                                if (!entry.getValue().dominates(equiv)) {
+                                if (!dominates(entry.getValue(), equiv)) {
                                     throw new SecurityLabelException("ACDF failure (equiv fails)");
                                 }
                             } catch (SIOException e) {
-                                // Ignore; missing encrypt or label fails to dominate.
+                                // Ignore; label fails to dominate.
                             }
                         } catch (SIOException e) {
                             throw new SecurityLabelException("ACDF failure (exception: " + e.getMessage() + ")");
@@ -251,16 +1067,7 @@ public class NewPlugin extends AbstractACDF implements Plugin {
                 throw new SecurityLabelException("ACDF failure (exception: " + e.getMessage() + ")");
             }
 
-            if (rewrite != null) {
-                Set<String> pols = new HashSet<>();
-                if (XMPPServer.getInstance().isLocal(rewrite)) {
-                    pols.addAll(StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_USER_POL_PREFIX + rewrite.getNode())));
-                } else {
-                    pols.addAll(StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_PEER_POL_PREFIX + rewrite.getDomain())));
-                }
-                if (pols.isEmpty()) {
-                    pols.addAll(clearances.keySet());
-                }
+            if (pols != null) {
                 if (equiv != null) {
                     if (pols.contains(equiv.policy().policy_id())) {
                         // This one.
@@ -271,18 +1078,9 @@ public class NewPlugin extends AbstractACDF implements Plugin {
                     return l;
                 }
                 for (String policy_id : pols) {
-                    try {
-                        equiv = l.encrypt(Site.site().spif(policy_id));
-                        String s = equiv.toNATOXML();
-                        if (!label_cache.containsKey(s)) {
-                            label_cache.put(equiv.toNATOXML(), equiv);
-                        } else {
-                            equiv.dispose();
-                            equiv = label_cache.get(s);
-                        }
+                    equiv = getEquivalent(key, l, policy_id);
+                    if (equiv != null) {
                         return equiv;
-                    } catch (SIOException e) {
-                        // Ignore; missing encrypt.
                     }
                 }
                 throw new SecurityLabelException("Couldn't not rewrite label to known policy");
@@ -296,13 +1094,26 @@ public class NewPlugin extends AbstractACDF implements Plugin {
 
     @Override
     public SecurityLabel valid(SecurityLabel label, boolean rewrite) {
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
-            Label l = getLabel(label);
+            SecurityLabel result = validate(label, rewrite);
+            failed = false;
+            return result;
+        } finally {
+            metrics.valid.record(start, failed);
+        }
+    }
+
+    private SecurityLabel validate(SecurityLabel label, boolean rewrite) {
+        try (LabelCache.Guard guard = label_cache.enter()) {
+            String key = getLabelKey(label);
+            Label l = getLabelByKey(key);
             if (!l.valid()) {
                 throw new SecurityLabelException("Label is not valid");
             }
             if (rewrite) {
-                return rewrite(l);
+                return rewrite(key, l);
             }
             return null;
         } catch (SIOException e) {
@@ -310,62 +1121,39 @@ public class NewPlugin extends AbstractACDF implements Plugin {
         }
     }
 
-    LinkedHashMap<String,Clearance> getSpiffingClearance(JID entity) {
-        return getSpiffingClearance(getClearance(entity));
+    /**
+     * Returns the shared, parsed clearances of the entity. Caller must close() the result.
+     */
+    ClearanceSet getSpiffingClearance(JID entity) {
+        return clearance_cache.acquire(entity);
     }
 
-    LinkedHashMap<String, Clearance> getSpiffingClearance(String clearanceString) {
-        LinkedHashMap<String, Clearance> clearances = new LinkedHashMap<>();
-        for (String clearance : StringUtils.stringToCollection(clearanceString)) {
-            try {
-                Clearance clr = new Clearance(clearance);
-                clearances.put(clr.policy().policy_id(), clr);
-            } catch (SIOException e) {
-                Log.warn("Bad Clearance in clearance string: ", e);
-            }
-        }
-        return clearances;
+    /**
+     * Returns the shared, parsed clearances for the clearance string. Caller must close() the result.
+     */
+    ClearanceSet getSpiffingClearance(String clearanceString) {
+        return clearance_cache.acquire(clearanceString);
     }
 
-    private void dispose(LinkedHashMap<String, Clearance> clearances) {
-        for (String policy : clearances.keySet()) {
-            try {
-                Clearance c = clearances.get(policy);
-                c.close();
-            } catch (Exception ex) {
-                Log.warn("While freeing Clearance: ", ex);
-            }
-        }
-        clearances.clear();
+    /**
+     * The policies an entity wants labels rewritten into, defaulting to those it holds clearances for.
+     * The result is shared and immutable.
+     */
+    Set<String> getRewritePolicies(JID entity, ClearanceSet clearances) {
+        Set<String> pols = env.isLocal(entity) ? rewritePolicies.forUser(entity.getNode()) : rewritePolicies.forPeer(entity.getDomain());
+        return pols != null ? pols : clearances.policies();
     }
 
-    Label getEquiv(JID entity, Label input, LinkedHashMap<String,Clearance> clearances) {
+    Label getEquiv(JID entity, Label input, ClearanceSet clearances) {
         try {
-            Set<String> pols = new HashSet<>();
-            if (XMPPServer.getInstance().isLocal(entity)) {
-                pols.addAll(StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_USER_POL_PREFIX + entity.getNode())));
-            } else {
-                pols.addAll(StringUtils.stringToCollection(JiveGlobals.getProperty(PROP_PEER_POL_PREFIX + entity.getDomain())));
-            }
-            if (pols.isEmpty()) {
-                pols.addAll(clearances.keySet());
-            }
+            Set<String> pols = getRewritePolicies(entity, clearances);
             if (pols.contains(input.policy().policy_id())) {
                 return input;
             }
             for (String policy_id : pols) {
-                try {
-                    Label equiv = input.encrypt(Site.site().spif(policy_id));
-                    String s = equiv.toNATOXML();
-                    if (!label_cache.containsKey(s)) {
-                        label_cache.put(equiv.toNATOXML(), equiv);
-                    } else {
-                        equiv.dispose();
-                        equiv = label_cache.get(s);
-                    }
+                Label equiv = getEquivalent(null, input, policy_id);
+                if (equiv != null) {
                     return equiv;
-                } catch (SIOException e) {
-                    // Ignore; missing encrypt.
                 }
             }
         } catch (SIOException e) {
@@ -374,27 +1162,312 @@ public class NewPlugin extends AbstractACDF implements Plugin {
         return null;
     }
     Label getEquiv(JID entity, Label input) {
-        return getEquiv(entity, input, getSpiffingClearance(entity));
+        try (ClearanceSet clearances = getSpiffingClearance(entity)) {
+            return getEquiv(entity, input, clearances);
+        }
     }
 
     SecurityLabel rewrite(Label label) throws SIOException {
+        return rewrite(null, label);
+    }
+
+    SecurityLabel rewrite(String key, Label label) throws SIOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            SecurityLabel result = getRendered(key, label).toSecurityLabel();
+            failed = false;
+            return result;
+        } finally {
+            metrics.rewrite.record(start, failed);
+        }
+    }
+
+    private static Lattice compileLattice(String policyFile) {
         SAXReader reader = new SAXReader();
         reader.setEncoding("UTF-8");
+        try (Reader r = new FileReader(policyFile)) {
+            return Lattice.compile(reader.read(r).getRootElement());
+        } catch (IOException | DocumentException e) {
+            Log.warn("Couldn't read SPIF " + policyFile + " for compiling: ", e);
+            return null;
+        }
+    }
+
+    /**
+     * spiffing.lattice is "off" (the default), "on", or "verify" to also make every native call and
+     * report disagreements.
+     */
+    private void readLatticeMode() {
+        String mode = env.getProperty(PROP_LATTICE);
+        latticeVerify = "verify".equals(mode);
+        latticeEnabled = latticeVerify || "on".equals(mode);
+    }
+
+    /**
+     * Whether the entity's clearance in the policy dominates the label. Uses the compiled lattice when it
+     * can express both, and the native library otherwise. The key may be null if the label's cache key
+     * is unknown, in which case the check is native.
+     */
+    boolean dominates(ClearanceSet clearances, String policy_id, String key, Label label) throws SIOException {
+        Clearance clearance = clearances.get(policy_id);
+        if (latticeEnabled && key != null && clearance != null) {
+            Lattice lattice = lattices.get(policy_id);
+            Lattice.ClearanceBits held = lattice == null ? null : clearanceBits(clearances, policy_id, lattice);
+            Lattice.LabelBits wanted = held == null ? null : labelBits(key, label, lattice);
+            if (wanted != null) {
+                latticeChecks.increment();
+                boolean result = Lattice.dominates(held, wanted);
+                if (latticeVerify) {
+                    boolean expected = dominates(clearance, label);
+                    if (expected != result) {
+                        latticeMismatches.increment();
+                        Log.warn("Compiled dominance disagrees with native for [" + clearance.displayMarking() + "] and ["
+                                + label.displayMarking() + "]: " + result + " != " + expected);
+                        return expected;
+                    }
+                }
+                return result;
+            }
+            latticeFallbacks.increment();
+        }
+        return dominates(clearance, label);
+    }
+
+    private Lattice.ClearanceBits clearanceBits(ClearanceSet clearances, String policy_id, Lattice lattice) {
+        Object bits = clearances.compiled(policy_id);
+        if (bits == null) {
+            bits = Lattice.UNCOMPILABLE;
+            try {
+                Lattice.ClearanceBits c = lattice.compileClearance(
+                        DocumentHelper.parseText(clearances.get(policy_id).toNATOXML()).getRootElement());
+                if (c != null) {
+                    bits = c;
+                }
+            } catch (SIOException | DocumentException e) {
+                Log.debug("Couldn't compile clearance: ", e);
+            }
+            clearances.compiled(policy_id, bits);
+        }
+        if (bits instanceof Lattice.ClearanceBits && ((Lattice.ClearanceBits) bits).lattice == lattice) {
+            return (Lattice.ClearanceBits) bits;
+        }
+        return null;
+    }
+
+    private Lattice.LabelBits labelBits(String key, Label label, Lattice lattice) {
+        LabelCache.Entry e = label_cache.peek(key);
+        if (e == null || e.label != label) {
+            return null;
+        }
+        Object bits = e.lattice;
+        if (bits == null) {
+            bits = Lattice.UNCOMPILABLE;
+            try {
+                // Keys of NATO labels are their XML; anything else needs asking the library.
+                String xml = key.startsWith("<") ? key : label.toNATOXML();
+                Lattice.LabelBits l = lattice.compileLabel(DocumentHelper.parseText(xml).getRootElement());
+                if (l != null) {
+                    bits = l;
+                }
+            } catch (SIOException | DocumentException ex) {
+                Log.debug("Couldn't compile label: ", ex);
+            }
+            e.lattice = bits;
+        }
+        if (bits instanceof Lattice.LabelBits && ((Lattice.LabelBits) bits).lattice == lattice) {
+            return (Lattice.LabelBits) bits;
+        }
+        return null;
+    }
+
+    /**
+     * Clearance.dominates(), timed.
+     */
+    boolean dominates(Clearance clearance, Label label) throws SIOException {
+        long start = System.nanoTime();
+        boolean failed = true;
         try {
-            Element nato = reader.read(new StringReader(label.toNATOXML())).getRootElement();
+            boolean result = clearance.dominates(label);
+            failed = false;
+            return result;
+        } finally {
+            metrics.dominates.record(start, failed);
+        }
+    }
 
-            return new SecurityLabel(label.displayMarking(), label.fgColour(), label.bgColour(), nato.createCopy());
-        } catch(DocumentException e) {
-            Log.warn("Encoded label does not parse: ", e);
-            throw new SIOException("Label encoding error");
+    /**
+     * Returns the rendered form of the label cached under the key, rendering and attaching it if needed.
+     * A null key renders the label without caching.
+     */
+    RenderedLabel getRendered(String key, Label label) throws SIOException {
+        if (key == null) {
+            return RenderedLabel.render(label);
+        }
+        if (key.equals(DEFAULT_LABEL_KEY)) {
+            RenderedLabel r = defaultRendered;
+            if (r == null) {
+                r = RenderedLabel.render(label);
+                defaultRendered = r;
+            }
+            return r;
+        }
+        LabelCache.Entry e = label_cache.peek(key);
+        if (e == null || e.label != label) {
+            // Not (or no longer) cached; render without keeping it.
+            return RenderedLabel.render(label);
+        }
+        RenderedLabel r = e.rendered;
+        if (r == null) {
+            r = restored.get(key);
+            if (r == null) {
+                r = RenderedLabel.render(label);
+            }
+            e.rendered = r;
         }
+        return r;
     }
 
     public Label getDefaultLabel() {
         return defaultLabel;
     }
 
-    public Collection<Label> getCatalogue() {
-        return label_cache.values();
+    public Catalogue getCatalogue() {
+        return catalogue;
+    }
+
+    /**
+     * Memoised ACDF decision hit and miss counts.
+     */
+    public long getDecisionCacheHits() {
+        return decision_cache.hits();
+    }
+
+    public long getDecisionCacheMisses() {
+        return decision_cache.misses();
+    }
+
+    /**
+     * Dominance checks made with compiled lattices, those that fell back to the native library, and,
+     * when verifying, those where the two disagreed.
+     */
+    public long getLatticeChecks() {
+        return latticeChecks.sum();
+    }
+
+    public long getLatticeFallbacks() {
+        return latticeFallbacks.sum();
+    }
+
+    public long getLatticeMismatches() {
+        return latticeMismatches.sum();
+    }
+
+    @Override
+    public void propertySet(String property, Map<String, Object> params) {
+        propertyChanged(property);
+    }
+
+    @Override
+    public void propertyDeleted(String property, Map<String, Object> params) {
+        propertyChanged(property);
+    }
+
+    /**
+     * Apply a change another node (or plugin instance) has seen.
+     */
+    private void invalidated(Invalidation event) {
+        switch (event.kind) {
+            case POLICIES:
+                schedulePolicyReload();
+                break;
+            case USER:
+                clearance_cache.invalidate(new JID(event.subject, env.getDomain(), null));
+                break;
+        }
+    }
+
+    @Override
+    public void xmlPropertySet(String property, Map<String, Object> params) {
+    }
+
+    @Override
+    public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+    }
+
+    private void propertyChanged(String property) {
+        if (rewritePolicies.update(property)) {
+            clearance_cache.invalidateAll();
+            decision_cache.invalidateAll();
+            invalidateCatalogues();
+        } else if (property.equals(PROP_POLICY_FILES)) {
+            watchPolicies();
+            schedulePolicyReload();
+        } else if (property.equals(PROP_LABEL_CATALOGUE)) {
+            loadCatalogue(false);
+        } else if (property.equals(PROP_LATTICE)) {
+            // Lattices are compiled with the policies, so turning them on needs a reload.
+            boolean wasEnabled = latticeEnabled;
+            readLatticeMode();
+            if (latticeEnabled && !wasEnabled) {
+                schedulePolicyReload();
+            }
+        } else if (property.equals(PROP_DEFLABEL)) {
+            reloadDefaultLabel();
+        }
+    }
+
+    /**
+     * Swap in a changed default label, retiring the old one, and drop decisions and translations made
+     * with it.
+     */
+    private synchronized void reloadDefaultLabel() {
+        if (label_cache == null) {
+            // Destroyed.
+            return;
+        }
+        try {
+            loadDefaultLabel();
+            decision_cache.setPolicies(policy_ids, policy_hashes, env.getProperty(PROP_DEFLABEL));
+        } catch (SIOException e) {
+            Log.warn("Couldn't load default label, keeping the current one: ", e);
+        }
+        decision_cache.invalidateAll();
+        equivalences.invalidateAll();
+    }
+
+    /**
+     * Drop the handlers' computed catalogues and rendered clearances.
+     */
+    private void invalidateCatalogues() {
+        CatalogueHandler h = catHandler0;
+        if (h != null) {
+            h.invalidate();
+        }
+        h = catHandler2;
+        if (h != null) {
+            h.invalidate();
+        }
+        ClearanceHandler c = clrHandler;
+        if (c != null) {
+            c.invalidate();
+        }
+    }
+
+    @Override
+    public void userCreated(User user, Map<String, Object> params) {
+    }
+
+    @Override
+    public void userDeleting(User user, Map<String, Object> params) {
+        clearance_cache.invalidate(XMPPServer.getInstance().createJID(user.getUsername(), null));
+        invalidationBus.publish(Invalidation.user(user.getUsername()));
+    }
+
+    @Override
+    public void userModified(User user, Map<String, Object> params) {
+        // The clearance may be held against the user, so any modification may have changed it.
+        clearance_cache.invalidate(XMPPServer.getInstance().createJID(user.getUsername(), null));
+        invalidationBus.publish(Invalidation.user(user.getUsername()));
     }
 }
@@ -0,0 +1,53 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.JiveGlobals;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.Collection;
+
+/**
+ * PluginEnvironment backed by JiveGlobals and the running XMPPServer.
+ */
+class OpenfireEnvironment implements PluginEnvironment {
+    @Override
+    public String getProperty(String name) {
+        return JiveGlobals.getProperty(name);
+    }
+
+    @Override
+    public int getIntProperty(String name, int defaultValue) {
+        return JiveGlobals.getIntProperty(name, defaultValue);
+    }
+
+    @Override
+    public long getLongProperty(String name, long defaultValue) {
+        return JiveGlobals.getLongProperty(name, defaultValue);
+    }
+
+    @Override
+    public boolean getBooleanProperty(String name, boolean defaultValue) {
+        return JiveGlobals.getBooleanProperty(name, defaultValue);
+    }
+
+    @Override
+    public Collection<String> getPropertyNames() {
+        return JiveGlobals.getPropertyNames();
+    }
+
+    @Override
+    public String getDomain() {
+        return XMPPServer.getInstance().getServerInfo().getXMPPDomain();
+    }
+
+    @Override
+    public boolean isLocal(JID jid) {
+        return XMPPServer.getInstance().isLocal(jid);
+    }
+
+    @Override
+    public void route(IQ reply) {
+        XMPPServer.getInstance().getPacketRouter().route(reply);
+    }
+}
@@ -0,0 +1,29 @@
+package com.surevine.spiffing.openfire;
+
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+import java.util.Collection;
+
+/**
+ * The server facilities the plugin's ACDF and handlers depend on: configuration properties, the
+ * local domain, and routing replies. OpenfireEnvironment is the real one; benchmarks and test
+ * harnesses supply their own so the plugin can run without a server.
+ */
+interface PluginEnvironment {
+    String getProperty(String name);
+
+    int getIntProperty(String name, int defaultValue);
+
+    long getLongProperty(String name, long defaultValue);
+
+    boolean getBooleanProperty(String name, boolean defaultValue);
+
+    Collection<String> getPropertyNames();
+
+    String getDomain();
+
+    boolean isLocal(JID jid);
+
+    void route(IQ reply);
+}
@@ -0,0 +1,93 @@
+package com.surevine.spiffing.openfire;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.io.SAXReader;
+import org.jivesoftware.util.StringUtils;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory copy of the SPIF policy documents, as served by the clearance handler's policy query.
+ *
+ * The parsed response is rebuilt only when spiffing.policies or a file's modification time changes,
+ * and modification times are checked at most once a second.
+ */
+class PolicyDocuments {
+    private static final long CHECK_INTERVAL = 1000;
+    private final PluginEnvironment env;
+    private final String namespace;
+    private String files = null;
+    private long[] mtimes = new long[0];
+    private List<File> paths = new ArrayList<>();
+    private Element payload = null;
+    private long lastChecked = 0;
+
+    PolicyDocuments(PluginEnvironment env, String namespace) {
+        this.env = env;
+        this.namespace = namespace;
+    }
+
+    /**
+     * Returns the shared policy element; callers must copy it before adding it to a stanza.
+     */
+    synchronized Element get() throws IOException, DocumentException {
+        String current = env.getProperty(NewPlugin.PROP_POLICY_FILES);
+        long now = System.currentTimeMillis();
+        if (payload != null && current != null && current.equals(files)) {
+            if (now - lastChecked < CHECK_INTERVAL) {
+                return payload;
+            }
+            lastChecked = now;
+            if (!modified()) {
+                return payload;
+            }
+        }
+        load(current);
+        lastChecked = now;
+        return payload;
+    }
+
+    synchronized void invalidate() {
+        payload = null;
+    }
+
+    private boolean modified() {
+        for (int i = 0; i != paths.size(); ++i) {
+            if (paths.get(i).lastModified() != mtimes[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void load(String current) throws IOException, DocumentException {
+        List<File> newPaths = new ArrayList<>();
+        for (String policyFile : StringUtils.stringToCollection(current)) {
+            newPaths.add(new File(policyFile));
+        }
+        long[] newMtimes = new long[newPaths.size()];
+        Element policies = DocumentHelper.createElement(QName.get("policy", namespace));
+        for (int i = 0; i != newPaths.size(); ++i) {
+            File f = newPaths.get(i);
+            newMtimes[i] = f.lastModified();
+            SAXReader reader = new SAXReader();
+            reader.setEncoding("UTF-8");
+            try (Reader r = new FileReader(f)) {
+                Element nato = reader.read(r).getRootElement();
+                policies.add(nato.detach());
+            }
+        }
+        this.files = current;
+        this.paths = newPaths;
+        this.mtimes = newMtimes;
+        this.payload = policies;
+    }
+}
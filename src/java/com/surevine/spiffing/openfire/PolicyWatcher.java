@@ -0,0 +1,80 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Watches the SPIF policy files and asks the plugin to reload them when any of them change.
+ */
+class PolicyWatcher implements Runnable {
+    private static final Logger Log = LoggerFactory.getLogger(PolicyWatcher.class);
+    private final NewPlugin plugin;
+    private final WatchService watcher;
+    private final Set<Path> files = new HashSet<>();
+    private final Thread thread;
+
+    PolicyWatcher(NewPlugin plugin, Collection<String> policyFiles) throws IOException {
+        this.plugin = plugin;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        Set<Path> dirs = new HashSet<>();
+        for (String policyFile : policyFiles) {
+            Path path = Paths.get(policyFile).toAbsolutePath().normalize();
+            files.add(path);
+            dirs.add(path.getParent());
+        }
+        for (Path dir : dirs) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        this.thread = new Thread(this, "spiffing-policy-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Log.warn("Closing policy watcher: ", e);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        changed = true;
+                    } else if (files.contains(dir.resolve((Path) event.context()))) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+                if (changed) {
+                    plugin.policyFilesChanged();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped.
+        }
+    }
+}
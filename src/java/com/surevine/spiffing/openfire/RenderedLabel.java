@@ -0,0 +1,87 @@
+package com.surevine.spiffing.openfire;
+
+import com.surevine.spiffing.Label;
+import com.surevine.spiffing.SIOException;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.jivesoftware.openfire.labelling.SecurityLabel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.StringReader;
+
+/**
+ * The immutable rendered forms of a Label: display marking, colours, NATO XML element and ESS encoding.
+ *
+ * The NATO element is never handed out directly; each SecurityLabel gets its own copy.
+ */
+final class RenderedLabel {
+    private static final Logger Log = LoggerFactory.getLogger(RenderedLabel.class);
+    private final String displayMarking;
+    private final String fgColour;
+    private final String bgColour;
+    private final Element nato;
+    private final String ess;
+
+    private RenderedLabel(String displayMarking, String fgColour, String bgColour, Element nato, String ess) {
+        this.displayMarking = displayMarking;
+        this.fgColour = fgColour;
+        this.bgColour = bgColour;
+        this.nato = nato;
+        this.ess = ess;
+    }
+
+    static RenderedLabel render(Label label) throws SIOException {
+        SAXReader reader = new SAXReader();
+        reader.setEncoding("UTF-8");
+        Element nato;
+        try {
+            nato = reader.read(new StringReader(label.toNATOXML())).getRootElement();
+            nato.detach();
+        } catch (DocumentException e) {
+            Log.warn("Encoded label does not parse: ", e);
+            throw new SIOException("Label encoding error");
+        }
+        String ess = null;
+        try {
+            ess = label.toESSBase64();
+        } catch (SIOException e) {
+            // Not every label has an ESS encoding; asESS will report it.
+        }
+        return new RenderedLabel(label.displayMarking(), label.fgColour(), label.bgColour(), nato, ess);
+    }
+
+    /**
+     * Rebuild rendered forms saved in a Snapshot, without the native library.
+     */
+    static RenderedLabel restore(Snapshot.Rendered saved) throws DocumentException {
+        SAXReader reader = new SAXReader();
+        reader.setEncoding("UTF-8");
+        Element nato = reader.read(new StringReader(saved.nato)).getRootElement();
+        nato.detach();
+        return new RenderedLabel(saved.displayMarking, saved.fgColour, saved.bgColour, nato, saved.ess);
+    }
+
+    /**
+     * The forms to save in a Snapshot.
+     */
+    Snapshot.Rendered save(String key, String policy_id) {
+        return new Snapshot.Rendered(key, policy_id, displayMarking, fgColour, bgColour, nato.asXML(), ess);
+    }
+
+    SecurityLabel toSecurityLabel() {
+        return new SecurityLabel(displayMarking, fgColour, bgColour, nato.createCopy());
+    }
+
+    String displayMarking() {
+        return displayMarking;
+    }
+
+    /**
+     * The ESS base64 encoding, or null if the label could not be encoded.
+     */
+    String ess() {
+        return ess;
+    }
+}
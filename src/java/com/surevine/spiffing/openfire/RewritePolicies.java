@@ -0,0 +1,111 @@
+package com.surevine.spiffing.openfire;
+
+import org.jivesoftware.util.StringUtils;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the spiffing.policy.user.* and spiffing.policy.peer.* properties.
+ *
+ * Policy sets are immutable and interned, so users and peers configured alike share one instance;
+ * sets no longer configured for anyone are dropped from the intern table as it grows. The index is
+ * built once and then kept current by the plugin's property listener.
+ */
+class RewritePolicies {
+    private final PluginEnvironment env;
+    private final Map<String, Set<String>> users = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> peers = new ConcurrentHashMap<>();
+    private final Map<Set<String>, Set<String>> interned = new ConcurrentHashMap<>();
+
+    RewritePolicies(PluginEnvironment env) {
+        this.env = env;
+        for (String property : env.getPropertyNames()) {
+            update(property);
+        }
+    }
+
+    /**
+     * The configured policies for a local user, or null if none are configured.
+     */
+    Set<String> forUser(String node) {
+        return node == null ? null : users.get(node);
+    }
+
+    /**
+     * The configured policies for a peer domain, or null if none are configured.
+     */
+    Set<String> forPeer(String domain) {
+        return domain == null ? null : peers.get(domain);
+    }
+
+    /**
+     * Re-read a property if it's one of ours. Returns true if it was.
+     */
+    boolean update(String property) {
+        if (property.startsWith(NewPlugin.PROP_USER_POL_PREFIX)) {
+            update(users, property.substring(NewPlugin.PROP_USER_POL_PREFIX.length()), property);
+            return true;
+        } else if (property.startsWith(NewPlugin.PROP_PEER_POL_PREFIX)) {
+            update(peers, property.substring(NewPlugin.PROP_PEER_POL_PREFIX.length()), property);
+            return true;
+        }
+        return false;
+    }
+
+    int size() {
+        return users.size() + peers.size();
+    }
+
+    /**
+     * Nodes of the local users with configured policies.
+     */
+    Set<String> users() {
+        return users.keySet();
+    }
+
+    /**
+     * Peer domains with configured policies.
+     */
+    Set<String> peers() {
+        return peers.keySet();
+    }
+
+    private synchronized void update(Map<String, Set<String>> index, String name, String property) {
+        Set<String> pols = new LinkedHashSet<>(StringUtils.stringToCollection(env.getProperty(property)));
+        if (pols.isEmpty()) {
+            index.remove(name);
+        } else {
+            index.put(name, intern(pols));
+        }
+        if (interned.size() > 2 * size() + 16) {
+            prune();
+        }
+    }
+
+    /**
+     * Drop interned sets which no user or peer is configured with any more.
+     */
+    private void prune() {
+        Set<Set<String>> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        live.addAll(users.values());
+        live.addAll(peers.values());
+        interned.values().removeIf(pols -> !live.contains(pols));
+    }
+
+    private Set<String> intern(Set<String> pols) {
+        Set<String> existing = interned.get(pols);
+        if (existing == null) {
+            Set<String> frozen = Collections.unmodifiableSet(pols);
+            existing = interned.putIfAbsent(frozen, frozen);
+            if (existing == null) {
+                existing = frozen;
+            }
+        }
+        return existing;
+    }
+}
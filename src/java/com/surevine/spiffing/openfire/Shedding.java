@@ -0,0 +1,29 @@
+package com.surevine.spiffing.openfire;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size limiting for caches kept in a plain ConcurrentHashMap.
+ *
+ * Rather than keep LRU order on every hit, a full map sheds roughly a tenth of its entries, in no
+ * particular order. Hot entries come straight back.
+ */
+final class Shedding {
+    private Shedding() {
+    }
+
+    /**
+     * Make room for one more entry if the map already holds maxSize.
+     */
+    static void makeRoom(ConcurrentHashMap<?, ?> map, int maxSize) {
+        if (map.size() < maxSize) {
+            return;
+        }
+        int shed = Math.max(1, maxSize / 10);
+        for (Iterator<?> it = map.keySet().iterator(); it.hasNext() && shed > 0; --shed) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.surevine.spiffing.openfire;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk snapshot of what the plugin derives from its policies through the native library: the
+ * rendered forms of catalogue labels and their equivalents, and the results of encrypt().
+ *
+ * Every entry names the policies it depends on, and the snapshot records a SHA-256 of each SPIF
+ * file it was taken against; on loading, only entries whose policies are unchanged are used, so
+ * changing one SPIF rebuilds only what depends on it. The file is read through a memory mapping and
+ * replaced atomically when written.
+ */
+final class Snapshot {
+    private static final Logger Log = LoggerFactory.getLogger(Snapshot.class);
+    static String PROP_SNAPSHOT_FILE = "spiffing.snapshot.file";
+    private static final int MAGIC = 0x53504653;
+    static final int VERSION = 1;
+
+    static final class Rendered {
+        final String key;
+        final String policy_id;
+        final String displayMarking;
+        final String fgColour;
+        final String bgColour;
+        final String nato;
+        final String ess;
+
+        Rendered(String key, String policy_id, String displayMarking, String fgColour, String bgColour, String nato, String ess) {
+            this.key = key;
+            this.policy_id = policy_id;
+            this.displayMarking = displayMarking;
+            this.fgColour = fgColour;
+            this.bgColour = bgColour;
+            this.nato = nato;
+            this.ess = ess;
+        }
+    }
+
+    static final class Equivalence {
+        final String source;
+        final String source_policy;
+        final String target_policy;
+        /** The equivalent label's key, or null if there is no mapping. */
+        final String target;
+
+        Equivalence(String source, String source_policy, String target_policy, String target) {
+            this.source = source;
+            this.source_policy = source_policy;
+            this.target_policy = target_policy;
+            this.target = target;
+        }
+    }
+
+    /** SHA-256 of each policy's SPIF file, by policy id, in hex. */
+    final Map<String, String> policies;
+    final List<Rendered> rendered;
+    final List<Equivalence> equivalences;
+
+    Snapshot(Map<String, String> policies, List<Rendered> rendered, List<Equivalence> equivalences) {
+        this.policies = policies;
+        this.rendered = rendered;
+        this.equivalences = equivalences;
+    }
+
+    /**
+     * Whether the policy was snapshotted with the same SPIF content it has now.
+     */
+    boolean current(String policy_id, Map<String, String> hashes) {
+        String hash = policies.get(policy_id);
+        return hash != null && hash.equals(hashes.get(policy_id));
+    }
+
+    /**
+     * The hex SHA-256 of a file's content.
+     */
+    static String hash(Path file) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = sha256.digest(Files.readAllBytes(file));
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a snapshot, or return null if there is none or it can't be used.
+     */
+    static Snapshot read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC) {
+                Log.warn("Ignoring " + file + ": not a snapshot");
+                return null;
+            }
+            int version = buf.getInt();
+            if (version != VERSION) {
+                Log.info("Ignoring snapshot " + file + " of version " + version);
+                return null;
+            }
+            Map<String, String> policies = new HashMap<>();
+            for (int i = count(buf); i != 0; --i) {
+                policies.put(string(buf), string(buf));
+            }
+            List<Rendered> rendered = new ArrayList<>();
+            for (int i = count(buf); i != 0; --i) {
+                rendered.add(new Rendered(string(buf), string(buf), string(buf), string(buf), string(buf), string(buf), string(buf)));
+            }
+            List<Equivalence> equivalences = new ArrayList<>();
+            for (int i = count(buf); i != 0; --i) {
+                equivalences.add(new Equivalence(string(buf), string(buf), string(buf), string(buf)));
+            }
+            return new Snapshot(policies, rendered, equivalences);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.warn("Ignoring unreadable snapshot " + file + ": ", e);
+            return null;
+        }
+    }
+
+    private static int count(ByteBuffer buf) {
+        int n = buf.getInt();
+        if (n < 0 || n > buf.remaining()) {
+            throw new IllegalArgumentException("Bad entry count " + n);
+        }
+        return n;
+    }
+
+    private static String string(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the snapshot to a temporary file beside the target, then move it into place.
+     */
+    void write(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(policies.size());
+                for (Map.Entry<String, String> e : policies.entrySet()) {
+                    string(out, e.getKey());
+                    string(out, e.getValue());
+                }
+                out.writeInt(rendered.size());
+                for (Rendered r : rendered) {
+                    string(out, r.key);
+                    string(out, r.policy_id);
+                    string(out, r.displayMarking);
+                    string(out, r.fgColour);
+                    string(out, r.bgColour);
+                    string(out, r.nato);
+                    string(out, r.ess);
+                }
+                out.writeInt(equivalences.size());
+                for (Equivalence e : equivalences) {
+                    string(out, e.source);
+                    string(out, e.source_policy);
+                    string(out, e.target_policy);
+                    string(out, e.target);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void string(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}